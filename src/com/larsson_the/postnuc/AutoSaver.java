@@ -0,0 +1,240 @@
+package com.larsson_the.postnuc;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Autosave service. Remembers the state of the game at the last save and saves it again
+ * on the interval and on exit only if the character or save info has changed since then.<br>
+ * Autosaves run on a separate thread. Only a snapshot is taken there, file is written by {@link SaveWriter},
+ * so input handling is never blocked by the disk. State is taken as saved when the save is submitted,
+ * if writing fails later the state becomes dirty again and is saved by the next autosave.<br>
+ * All saves and changes of the whole state(new or loaded game) must go through this service,
+ * so autosave never sees a half-changed state.
+ */
+class AutoSaver {
+    private static Logger log = Logger.getLogger(AutoSaver.class.getName());
+
+    private final Target target;
+    private final ScheduledExecutorService scheduler;
+
+    private Character savedPlayer;
+    private long savedModifications;
+    private Map<String, String> savedInfo;
+    private SaveWriter.Handle lastHandle;
+
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger coalesced = new AtomicInteger();
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * @param target Game state to save
+     * @param interval Interval between autosaves in seconds, 0 - only on exit
+     */
+    AutoSaver(Target target, long interval) {
+        this.target = target;
+
+        if (interval > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "autosave");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::autosave, interval, interval, TimeUnit.SECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Saves the game regardless of changes
+     * @return handle to wait for the save to be written
+     */
+    public synchronized SaveWriter.Handle save() throws MissingArgumentException {
+        Character player = target.getPlayer();
+        long modifications = modificationsOf(player);
+        Map<String, String> saveInfo = copyOf(target.getSaveInfo());
+
+        SaveWriter.Handle handle = target.save();
+        lastHandle = handle;
+        markClean(player, modifications, saveInfo);
+
+        // Registered after marking: callback of an already failed write runs right here
+        handle.getFuture().whenComplete((h, e) -> {
+            if (e != null)
+                markDirty(player, modifications);
+        });
+
+        return handle;
+    }
+
+    /**
+     * Saves the game if it has changed since the last save
+     */
+    public synchronized void autosave() {
+        if (!isDirty()) {
+            skipped.incrementAndGet();
+            log.fine("Nothing changed since last save. Autosave skipped");
+            return;
+        }
+
+        Character player = target.getPlayer();
+        long modifications = modificationsOf(player);
+        Map<String, String> saveInfo = copyOf(target.getSaveInfo());
+
+        SaveWriter.Handle handle;
+        try {
+            handle = target.save();
+        } catch (MissingArgumentException e) {
+            failed.incrementAndGet();
+            log.warning("Autosave failed: " + e.getMessage());
+            return;
+        }
+
+        boolean merged = handle == lastHandle && !handle.isDone();
+        if (merged) {
+            coalesced.incrementAndGet();
+            log.fine("Autosave coalesced with pending save");
+        }
+
+        lastHandle = handle;
+        markClean(player, modifications, saveInfo);
+
+        handle.getFuture().whenComplete((h, e) -> {
+            if (e != null) {
+                markDirty(player, modifications);
+                if (!merged)
+                    failed.incrementAndGet();
+            } else if (!merged) {
+                written.incrementAndGet();
+                log.fine("Autosave written in " + h.getLatencyMillis() + "ms");
+            }
+        });
+    }
+
+    /**
+     * Replaces the state of the game(for ex. after loading) and takes it as saved
+     * @param change Changes the state
+     */
+    public synchronized void reset(Runnable change) {
+        change.run();
+        markClean();
+    }
+
+    /**
+     * @return true if the state has changed since the last save
+     */
+    public synchronized boolean isDirty() {
+        Character player = target.getPlayer();
+        if (player == null)
+            return false;
+
+        return player != savedPlayer || player.getModifications() != savedModifications
+                || !copyOf(target.getSaveInfo()).equals(savedInfo);
+    }
+
+    /**
+     * Stops the interval autosaves and saves the game for the last time if it has changed
+     */
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        autosave();
+        log.info("Autosaves: " + written + " written, " + coalesced + " coalesced, "
+                + skipped + " skipped, " + failed + " failed");
+    }
+
+    private void markClean() {
+        Character player = target.getPlayer();
+        markClean(player, modificationsOf(player), copyOf(target.getSaveInfo()));
+    }
+
+    /**
+     * @param modifications Modifications of the player taken before the snapshot,
+     *                      so changes made while it was taken stay dirty
+     */
+    private void markClean(Character player, long modifications, Map<String, String> saveInfo) {
+        savedPlayer = player;
+        savedModifications = modifications;
+        savedInfo = saveInfo;
+    }
+
+    /**
+     * Takes the state as unsaved after a failed write, unless it was changed and marked by a later save since then
+     */
+    private synchronized void markDirty(Character player, long modifications) {
+        if (savedPlayer == player && savedModifications == modifications) {
+            savedPlayer = null;
+            log.warning("Save failed, the game will be saved again by the next autosave");
+        }
+    }
+
+    private static long modificationsOf(Character player) {
+        return (player == null) ? 0 : player.getModifications();
+    }
+
+    private static Map<String, String> copyOf(Map<String, String> saveInfo) {
+        return (saveInfo == null) ? new HashMap<>() : new HashMap<>(saveInfo);
+    }
+
+    /**
+     * @return amount of autosaves skipped because nothing changed
+     */
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @return amount of autosaves merged into a pending save
+     */
+    public int getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return amount of autosaves written to the disk
+     */
+    public int getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return amount of failed autosaves
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * State of the game to save
+     */
+    public interface Target {
+        /**
+         * @return current character, null if the game is not started
+         */
+        Character getPlayer();
+
+        /**
+         * @return current save info, can be null
+         */
+        Map<String, String> getSaveInfo();
+
+        /**
+         * Takes a snapshot of the state and submits it to the writer
+         */
+        SaveWriter.Handle save() throws MissingArgumentException;
+    }
+}
@@ -0,0 +1,321 @@
+package com.larsson_the.postnuc;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact save format.<br>
+ * Body layout(after {@link SaveHeader}): sections [id(varint)][length(varint)][payload]
+ * terminated with section {@link #SECTION_END}.<br>
+ * All integers inside payloads are varints(signed ones are zigzag-encoded),
+ * strings are [length(varint)][UTF-8 bytes]. Unknown sections are skipped, so newer saves
+ * are still readable as long as the known sections are not changed.<br>
+ * Delta saves may follow the snapshot as {@link SaveJournal} batches, they are replayed on read.
+ */
+class BinarySaveCodec implements SaveCodec {
+    static final int SECTION_END = 0;
+    static final int SECTION_SAVE_INFO = 1;
+    static final int SECTION_BASICS = 2;
+    static final int SECTION_SPECIAL = 3;
+    static final int SECTION_SKILLS = 4;
+    static final int SECTION_TRAITS = 5;
+    static final int SECTION_PERKS = 6;
+    static final int SECTION_INVENTORY = 7;
+    /**
+     * Max length of a section or string, longer ones are taken as corrupted
+     */
+    static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    @Override
+    public void write(SaveSnapshot snapshot, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        ByteArrayOutputStream section = new ByteArrayOutputStream(256);
+
+        writeStringMap(section, snapshot.getSaveInfo());
+        writeSection(data, SECTION_SAVE_INFO, section);
+
+        writeStringMap(section, snapshot.getBasics());
+        writeSection(data, SECTION_BASICS, section);
+
+        writeIntMap(section, snapshot.getSpecial());
+        writeSection(data, SECTION_SPECIAL, section);
+
+        writeSkills(section, snapshot.getSkillPoints(), snapshot.getTaggedSkills());
+        writeSection(data, SECTION_SKILLS, section);
+
+        writeStringList(section, snapshot.getTraits());
+        writeSection(data, SECTION_TRAITS, section);
+
+        writeIntMap(section, snapshot.getPerks());
+        writeSection(data, SECTION_PERKS, section);
+
+        writeInventory(section, snapshot.getInventory());
+        writeSection(data, SECTION_INVENTORY, section);
+
+        writeVarint(data, SECTION_END);
+        data.flush();
+    }
+
+    @Override
+    public SaveSnapshot read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        Map<String, String> saveInfo = null;
+        Map<String, String> basics = null;
+        Map<String, Integer> special = null;
+        List<String> traits = Collections.emptyList();
+        Map<String, Integer> skillPoints = new LinkedHashMap<>();
+        Set<String> taggedSkills = new LinkedHashSet<>();
+        Map<String, Integer> perks = Collections.emptyMap();
+        List<Inventory.Slot> inventory = Collections.emptyList();
+
+        try {
+            int id;
+            while ((id = readVarint(data)) != SECTION_END) {
+                byte[] payload = readBytes(data, readVarint(data));
+                ByteArrayInputStream section = new ByteArrayInputStream(payload);
+
+                switch (id) {
+                    case SECTION_SAVE_INFO:
+                        saveInfo = readStringMap(section);
+                        break;
+                    case SECTION_BASICS:
+                        basics = readStringMap(section);
+                        break;
+                    case SECTION_SPECIAL:
+                        special = readIntMap(section);
+                        break;
+                    case SECTION_SKILLS:
+                        readSkills(section, skillPoints, taggedSkills);
+                        break;
+                    case SECTION_TRAITS:
+                        traits = readStringList(section);
+                        break;
+                    case SECTION_PERKS:
+                        perks = readIntMap(section);
+                        break;
+                    case SECTION_INVENTORY:
+                        inventory = readInventory(section);
+                        break;
+                    default:
+                        // Section is empty or unknown: nothing to read from it yet
+                }
+            }
+        } catch (EOFException e) {
+            throw new CorruptedSaveException("Сохранение обрезано!");
+        }
+
+        if (saveInfo == null || basics == null || special == null)
+            throw new CorruptedSaveException("В сохранении отсутствуют обязательные секции!");
+
+        return SaveJournal.replay(new SaveSnapshot(saveInfo, basics, special).withTraits(traits)
+                .withSkills(skillPoints, taggedSkills).withPerks(perks).withInventory(inventory), data);
+    }
+
+    @Override
+    public boolean isAppendable() {
+        return true;
+    }
+
+    /**
+     * @return offset of the journal after the snapshot, which starts at the offset
+     * @throws CorruptedSaveException if the snapshot is truncated
+     */
+    static int skipSnapshot(byte[] data, int offset) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(data, offset, data.length - offset);
+
+        try {
+            while (readVarint(in) != SECTION_END) {
+                int length = readVarint(in);
+                if (length < 0 || in.skip(length) != length)
+                    throw new EOFException();
+            }
+        } catch (EOFException e) {
+            throw new CorruptedSaveException("Сохранение обрезано!");
+        }
+
+        return data.length - in.available();
+    }
+
+    private static void writeSection(OutputStream out, int id, ByteArrayOutputStream section) throws IOException {
+        writeVarint(out, id);
+        writeVarint(out, section.size());
+        section.writeTo(out);
+        section.reset();
+    }
+
+    static void writeStringMap(OutputStream out, Map<String, String> map) throws IOException {
+        writeVarint(out, map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    static Map<String, String> readStringMap(InputStream in) throws IOException {
+        int size = readVarint(in);
+        Map<String, String> map = new LinkedHashMap<>();
+
+        for (int i = 0; i < size; i++)
+            map.put(readString(in), readString(in));
+
+        return map;
+    }
+
+    /**
+     * Map of signed integers, for ex. SPECIAL or ranks of perks
+     */
+    static void writeIntMap(OutputStream out, Map<String, Integer> map) throws IOException {
+        writeVarint(out, map.size());
+        for (Map.Entry<String, Integer> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeSignedVarint(out, entry.getValue());
+        }
+    }
+
+    static Map<String, Integer> readIntMap(InputStream in) throws IOException {
+        int size = readVarint(in);
+        Map<String, Integer> map = new LinkedHashMap<>();
+
+        for (int i = 0; i < size; i++)
+            map.put(readString(in), readSignedVarint(in));
+
+        return map;
+    }
+
+    /**
+     * Skills: spent points by keys of skills, then keys of tagged skills
+     */
+    static void writeSkills(OutputStream out, Map<String, Integer> points, Set<String> tagged) throws IOException {
+        writeIntMap(out, points);
+        writeStringList(out, new ArrayList<>(tagged));
+    }
+
+    /**
+     * @param in Payload of the section or record
+     * @param points Map filled with spent points
+     * @param tagged Set filled with tagged skills
+     */
+    static void readSkills(ByteArrayInputStream in, Map<String, Integer> points, Set<String> tagged)
+            throws IOException {
+        points.putAll(readIntMap(in));
+        // Empty section of older saves has no list of tagged skills
+        if (in.available() > 0)
+            tagged.addAll(readStringList(in));
+    }
+
+    /**
+     * Inventory: slots as [item id][count][condition][flags]
+     */
+    static void writeInventory(OutputStream out, List<Inventory.Slot> slots) throws IOException {
+        writeVarint(out, slots.size());
+        for (Inventory.Slot slot : slots) {
+            writeVarint(out, slot.getId());
+            writeVarint(out, slot.getCount());
+            writeVarint(out, slot.getCondition());
+            writeVarint(out, slot.getFlags());
+        }
+    }
+
+    static List<Inventory.Slot> readInventory(InputStream in) throws IOException {
+        int size = readVarint(in);
+        List<Inventory.Slot> slots = new ArrayList<>();
+
+        for (int i = 0; i < size; i++)
+            slots.add(new Inventory.Slot(readVarint(in), readVarint(in), readVarint(in), readVarint(in)));
+
+        return slots;
+    }
+
+    static void writeStringList(OutputStream out, List<String> list) throws IOException {
+        writeVarint(out, list.size());
+        for (String s : list)
+            writeString(out, s);
+    }
+
+    static List<String> readStringList(InputStream in) throws IOException {
+        int size = readVarint(in);
+        List<String> list = new ArrayList<>();
+
+        for (int i = 0; i < size; i++)
+            list.add(readString(in));
+
+        return list;
+    }
+
+    static void writeString(OutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(InputStream in) throws IOException {
+        return new String(readBytes(in, readVarint(in)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads bytes with the length taken from the save. Buffer grows while the bytes are read,
+     * so a wrong length can't allocate more memory than there is data in the stream.
+     * @throws CorruptedSaveException if the length is negative or above {@link #MAX_LENGTH}
+     * @throws EOFException if the stream ends before the length
+     */
+    static byte[] readBytes(InputStream in, int length) throws IOException {
+        if (length < 0 || length > MAX_LENGTH)
+            throw new CorruptedSaveException("Неверная длина данных в сохранении - " + length);
+        if (in instanceof ByteArrayInputStream && length > in.available())
+            throw new EOFException();
+
+        byte[] bytes = new byte[Math.min(length, BUFFER_SIZE)];
+        int off = 0;
+
+        while (off < length) {
+            if (off == bytes.length)
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length, bytes.length * 2L));
+
+            int n = in.read(bytes, off, bytes.length - off);
+            if (n < 0)
+                throw new EOFException();
+            off += n;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Writes unsigned int: 7 bits per byte, high bit set if more bytes follow
+     */
+    static void writeVarint(OutputStream out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    static int readVarint(InputStream in) throws IOException {
+        int v = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException();
+
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+
+        throw new CorruptedSaveException("Слишком длинное число в сохранении!");
+    }
+
+    static void writeSignedVarint(OutputStream out, int v) throws IOException {
+        writeVarint(out, (v << 1) ^ (v >> 31));
+    }
+
+    static int readSignedVarint(InputStream in) throws IOException {
+        int v = readVarint(in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
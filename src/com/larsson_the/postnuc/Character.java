@@ -1,119 +1,778 @@
 package com.larsson_the.postnuc;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
+/**
+ * Character of the player or NPC.<br>
+ * Basics, SPECIAL and the counter of modifications are guarded by a {@link StampedLock}. Writers take it
+ * exclusively for a few field writes, several fields are changed at once by {@link #update(Update)}.
+ * Readers of single stats and level do not lock at all, readers of several fields use optimistic reads
+ * and take the read lock only if a writer got in the way, so frequent readers never wait for each other.<br>
+ * Changes of fields are collected as bits of a mask while there are {@link Listener}s and delivered
+ * to them by {@link #flushChanges()} once per tick, nothing is recorded or allocated without listeners.
+ *
+ * <h4>Usage example:</h4>
+ * <pre>
+ *     character.update(e -&gt; e.setSpecial(Special.S, e.getSpecial(Special.S) - 1)
+ *             .setSpecial(Special.A, e.getSpecial(Special.A) + 1)
+ *             .setBasic("karma", "-100"));
+ *
+ *     int[] special = new int[Special.VALUES.length];
+ *     character.readSpecial(special);
+ * </pre>
+ */
 public class Character {
+    static final String[] SPECIAL_KEYS = {"s", "p", "e", "c", "i", "a", "l"};
+    /**
+     * Bits of changes besides SPECIAL ones(see {@link #changeOf(Special)})
+     */
+    static final int CHANGE_LEVEL = 1 << 7;
+    static final int CHANGE_BASICS = 1 << 8;
+
+    private static final Listener[] NO_LISTENERS = {};
+    private static final byte[] NO_BONUS = new byte[Special.VALUES.length];
+
+    private final StampedLock lock = new StampedLock();
     private Character.Basics basics;
     private Character.SPECIAL special;
-    private Character.Skills skills;
-    private Character.Traits traits;
-    private Character.Perks perks;
-    private Character.Inventory inventory;
+    private final DerivedStats derived = new DerivedStats(this);
+    private final Character.Skills skills = new Character.Skills();
+    private final Character.Traits traits = new Character.Traits();
+    private final Character.Perks perks = new Character.Perks();
+    private long modifications;
+    /**
+     * Changes of skills, perks and inventory. They have their own monitors, so they are counted without the lock.
+     * {@link #getModifications()} is the sum of both counters.
+     */
+    private final AtomicLong sectionModifications = new AtomicLong();
+    private final Inventory inventory = new Inventory(sectionModifications::incrementAndGet);
+    /**
+     * Level parsed from basics, read without locks by derived stats and perks
+     */
+    private volatile int level = 1;
+    private volatile Listener[] listeners = NO_LISTENERS;
+    /**
+     * Changes since the last {@link #flushChanges()}, guarded by the write lock
+     */
+    private int changes;
+    private Set<String> changedBasics;
 
     Character(Map<String, String> basics, Map<String, Integer> special)
             throws SPECIAL.IllegalSpecialStatException {
         this.basics = new Character.Basics(basics);
         this.special = new Character.SPECIAL(special);
+    }
+
+    /**
+     * Empty character to be filled by the save loader. All SPECIAL stats must be set before use.
+     */
+    Character() {
+        this.basics = new Character.Basics(new LinkedHashMap<>());
+        this.special = new Character.SPECIAL();
+    }
 
-        skills = new Character.Skills();
-        traits = new Character.Traits();
-        perks = new Character.Perks();
-        inventory = new Character.Inventory();
+    /**
+     * Character sharing basics and SPECIAL with the snapshot until they are changed, for ex. to undo changes
+     */
+    Character(CharacterSnapshot snapshot) {
+        this.basics = new Character.Basics(snapshot.basics, true);
+        this.special = new Character.SPECIAL(snapshot.special, true);
+        for (String name : snapshot.getTraits())
+            traits.add(name);
+        restoreSkills(snapshot.getSkillPoints(), snapshot.getTaggedSkills());
+        restorePerks(snapshot.getPerks());
+        inventory.restore(snapshot.getInventory());
+        sectionModifications.set(0);
+        this.modifications = snapshot.getModifications();
     }
 
     public String getBasic(String key) {
-        return basics.get(key);
+        long stamp = lock.readLock();
+        try {
+            return basics.get(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
     public void setBasic(String k, String v) {
-        basics.put(k, v);
+        long stamp = lock.writeLock();
+        try {
+            basics.put(k, v);
+            modifications++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
+    /**
+     * @return read-only basics as of the moment of the call, later changes copy them
+     */
     public Map<String, String> getBasics() {
-        return basics.get();
+        long stamp = lock.readLock();
+        try {
+            return Collections.unmodifiableMap(basics.share());
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
+    /**
+     * Reads the stat with changes of taken traits without locking, a single stat is never torn
+     */
+    public int getSpecial(Special s) {
+        return special.get(s);
+    }
+    /**
+     * @return stat without changes of traits, as it is set and saved
+     */
+    public int getBaseSpecial(Special s) {
+        return special.getBase(s);
+    }
+    public void setSpecial(Special s, int v) throws SPECIAL.IllegalSpecialStatException {
+        long stamp = lock.writeLock();
+        try {
+            special.put(s, v);
+            modifications++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
     public int getSpecial(String k) {
         return special.get(k);
     }
     public void setSpecial(String k, int v) throws SPECIAL.IllegalSpecialStatException {
-        special.put(k, v);
+        long stamp = lock.writeLock();
+        try {
+            special.put(k, v);
+            modifications++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
+    /**
+     * @return read-only view of SPECIAL stats by their keys('s', 'p', ...)
+     */
     public Map<String, Integer> getSpecial() {
         return special.get();
     }
+    /**
+     * Copies all SPECIAL stats at once, so they are never mixed from before and after an {@link #update(Update)}
+     * @param result Array of {@link Special#VALUES} length, filled by {@link Special#ordinal()}, 0 - stat is not set
+     */
+    public void readSpecial(int[] result) {
+        long stamp = lock.tryOptimisticRead();
+        copySpecial(result);
+        if (lock.validate(stamp))
+            return;
+
+        stamp = lock.readLock();
+        try {
+            copySpecial(result);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    private void copySpecial(int[] result) {
+        byte[] values = special.values;
+        byte[] bonus = special.bonus;
+        for (int i = 0; i < values.length; i++)
+            result[i] = (values[i] == 0) ? 0 : withBonus(values[i], bonus[i]);
+    }
+    /**
+     * @return level from basics, 1 if it is not set
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Applies several changes of basics and SPECIAL under one write lock, readers see either none or all of them.
+     * If the update throws, all its changes are reverted by the undo log of the editor.
+     * @param update Changes made through the editor only, other methods of the character must not be called by it
+     */
+    public void update(Update update) throws SPECIAL.IllegalSpecialStatException {
+        long stamp = lock.writeLock();
+        Editor editor = new Editor();
+        boolean done = false;
+
+        try {
+            update.apply(editor);
+            done = true;
+        } finally {
+            if (!done)
+                editor.undo();
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return bit of changes of the stat, its ordinal
+     */
+    static int changeOf(Special s) {
+        return 1 << s.ordinal();
+    }
+
+    /**
+     * Adds listener of changes. Changes are collected only from this moment.
+     */
+    public synchronized void addListener(Listener listener) {
+        Listener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+        added[listeners.length] = listener;
+        listeners = added;
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        List<Listener> list = new ArrayList<>(Arrays.asList(listeners));
+        if (list.remove(listener))
+            listeners = list.isEmpty() ? NO_LISTENERS : list.toArray(new Listener[0]);
+    }
+
+    /**
+     * Delivers changes made since the last call to the listeners as one event, for ex. at the end of a tick.
+     * Listeners are called on the calling thread without locks held, so they can read the character.
+     * Changes of a failed {@link #update(Update)} are delivered too, though the values are restored.
+     */
+    public synchronized void flushChanges() {
+        int flushed;
+        Set<String> basics;
+        long stamp = lock.writeLock();
+        try {
+            flushed = changes;
+            basics = changedBasics;
+            changes = 0;
+            changedBasics = null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        if (flushed == 0)
+            return;
+
+        Set<String> keys = (basics == null) ? Collections.emptySet() : Collections.unmodifiableSet(basics);
+        for (Listener listener : listeners)
+            listener.changed(this, flushed, keys);
+    }
+
+    /**
+     * Records the change if somebody listens, the write lock must be held
+     */
+    private void changed(int change) {
+        if (listeners.length != 0)
+            changes |= change;
+    }
+
+    /**
+     * Sets spent points and tags of skills, for ex. from a save
+     * @throws IllegalArgumentException if a skill is unknown or has negative points
+     */
+    void restoreSkills(Map<String, Integer> points, Set<String> tagged) {
+        for (Map.Entry<String, Integer> entry : points.entrySet())
+            skills.addPoints(entry.getKey(), entry.getValue() - skills.getPoints(entry.getKey()));
+        for (String key : tagged)
+            skills.tag(key, true);
+    }
+
+    /**
+     * Sets ranks of taken perks, for ex. from a save
+     * @throws IllegalArgumentException if a perk is unknown or has a wrong rank
+     */
+    void restorePerks(Map<String, Integer> ranks) {
+        for (Map.Entry<String, Integer> entry : ranks.entrySet())
+            perks.setRank(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * @return stat changed by traits within 1..10
+     */
+    private static int withBonus(int value, int bonus) {
+        return (bonus == 0) ? value : Math.max(1, Math.min(10, value + bonus));
+    }
+
+    /**
+     * Sets changes of SPECIAL by taken traits
+     * @param bonus Changes by {@link Special#ordinal()}
+     */
+    private void setSpecialBonus(byte[] bonus) {
+        long stamp = lock.writeLock();
+        try {
+            special.setBonus(bonus);
+            modifications++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void changedBasic(String key) {
+        if (listeners.length == 0)
+            return;
+
+        changes |= "level".equals(key) ? CHANGE_BASICS | CHANGE_LEVEL : CHANGE_BASICS;
+        if (changedBasics == null)
+            changedBasics = new HashSet<>();
+        changedBasics.add(key);
+    }
+
+    public int getDerived(DerivedStat stat) {
+        return derived.get(stat);
+    }
+    public DerivedStats getDerivedStats() {
+        return derived;
+    }
+
+    public int getSkill(String key) {
+        return skills.get(key);
+    }
+    public Skills getSkills() {
+        return skills;
+    }
+    public Traits getTraits() {
+        return traits;
+    }
+    public Perks getPerks() {
+        return perks;
+    }
+
+    public Inventory getInventory() {
+        return inventory;
+    }
+    /**
+     * @return true if the character can carry the pieces of the item in addition to the inventory
+     */
+    public boolean canCarry(int itemId, int count) {
+        return inventory.getWeight() + inventory.weightOf(itemId, count) <= getDerived(DerivedStat.CARRY_WEIGHT);
+    }
+    /**
+     * @return true if all SPECIAL stats are set
+     */
+    public boolean hasFullSpecial() {
+        return special.isComplete();
+    }
+    /**
+     * @return amount of changes since creation, including skills, perks and inventory,
+     * used to detect unsaved changes
+     */
+    public long getModifications() {
+        long stamp = lock.tryOptimisticRead();
+        long result = modifications;
+        if (lock.validate(stamp))
+            return result + sectionModifications.get();
+
+        stamp = lock.readLock();
+        try {
+            return modifications + sectionModifications.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    /**
+     * Takes an immutable snapshot of basics, base SPECIAL, traits, skills, perks and inventory without copying them.
+     * Basics and SPECIAL are marked as shared, the next change of a shared section copies only this section.
+     * Only the read lock is taken, so snapshots do not block each other. Skills, perks and inventory have their
+     * own monitors and are taken before the lock, they do not depend on basics and SPECIAL.
+     */
+    public CharacterSnapshot snapshot() {
+        // Counted before the copies: a change made meanwhile is counted later and saved once more, never lost
+        long sectionChanges = sectionModifications.get();
+        Map<String, Integer> skillPoints;
+        Set<String> taggedSkills;
+        synchronized (skills) {
+            skillPoints = skills.getPoints();
+            taggedSkills = skills.getTagged();
+        }
+        Map<String, Integer> taken = perks.get();
+        List<Inventory.Slot> slots = inventory.getSlots();
+
+        long stamp = lock.readLock();
+        try {
+            return new CharacterSnapshot(basics.share(), special.share(), traits.names,
+                    skillPoints, taggedSkills, taken, slots, modifications + sectionChanges);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Listener of changes of basics and SPECIAL
+     *
+     * <h4>Usage example:</h4>
+     * <pre>
+     *     character.addListener((c, changes, basics) -&gt; {
+     *         if ((changes &amp; Character.changeOf(Special.S)) != 0)
+     *             System.out.println("S = " + c.getSpecial(Special.S));
+     *     });
+     *     ...
+     *     character.flushChanges();
+     * </pre>
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * @param changes Bits of changed fields: {@link #changeOf(Special)}, {@link #CHANGE_LEVEL},
+         *                {@link #CHANGE_BASICS}
+         * @param basics Keys of changed basics, valid only during the call
+         */
+        void changed(Character character, int changes, Set<String> basics);
+    }
+
+    /**
+     * Batch of changes for {@link #update(Update)}
+     */
+    @FunctionalInterface
+    public interface Update {
+        void apply(Editor editor) throws SPECIAL.IllegalSpecialStatException;
+    }
 
+    /**
+     * Access to basics and SPECIAL inside {@link #update(Update)}, the write lock is already held.
+     * Old values of fields are logged on their first change, nothing is copied for fields which are not changed.
+     */
+    public class Editor {
+        private final long oldModifications = modifications;
+        /**
+         * Old values of changed basics, created on the first change of basics
+         */
+        private Map<String, String> oldBasics;
+        private Set<String> addedBasics;
+        private final byte[] oldSpecial = new byte[Special.VALUES.length];
+        /**
+         * Bits of changed SPECIAL stats by {@link Special#ordinal()}
+         */
+        private int changedSpecial;
+
+        private Editor() {
+        }
+
+        public String getBasic(String key) {
+            return basics.get(key);
+        }
+
+        public Editor setBasic(String k, String v) {
+            if (oldBasics == null) {
+                oldBasics = new HashMap<>();
+                addedBasics = new HashSet<>();
+            }
+            if (!oldBasics.containsKey(k) && !addedBasics.contains(k)) {
+                if (basics.contains(k))
+                    oldBasics.put(k, basics.get(k));
+                else
+                    addedBasics.add(k);
+            }
+
+            basics.put(k, v);
+            modifications++;
+            return this;
+        }
+
+        /**
+         * @return stat without changes of traits, the one changed by {@link #setSpecial(Special, int)}
+         */
+        public int getSpecial(Special s) {
+            return special.getBase(s);
+        }
+
+        public Editor setSpecial(Special s, int v) throws SPECIAL.IllegalSpecialStatException {
+            int bit = 1 << s.ordinal();
+            byte old = special.values[s.ordinal()];
+
+            special.put(s, v);
+            if ((changedSpecial & bit) == 0) {
+                oldSpecial[s.ordinal()] = old;
+                changedSpecial |= bit;
+            }
+            modifications++;
+            return this;
+        }
+
+        /**
+         * Returns changed fields to their old values
+         */
+        private void undo() {
+            if (oldBasics != null) {
+                for (String key : addedBasics)
+                    basics.remove(key);
+                for (Map.Entry<String, String> entry : oldBasics.entrySet())
+                    basics.put(entry.getKey(), entry.getValue());
+            }
+            for (Special s : Special.VALUES)
+                if ((changedSpecial & (1 << s.ordinal())) != 0)
+                    special.undo(s, oldSpecial[s.ordinal()]);
+
+            modifications = oldModifications;
+        }
+    }
+
+    /**
+     * Basic stats. The map is copied on write after it has been shared with a {@link CharacterSnapshot}.
+     */
     public class Basics {
         private Map<String, String> map;
+        private boolean shared;
 
         Basics(Map<String, String> map) {
+            this(map, false);
+        }
+
+        Basics(Map<String, String> map, boolean shared) {
             this.map = map;
+            this.shared = shared;
+            level = parseLevel();
         }
 
         public String get(String key) {
             return map.get(key);
         }
 
+        public boolean contains(String key) {
+            return map.containsKey(key);
+        }
+
         public Map<String, String> get() {
-            return map;
+            return Collections.unmodifiableMap(map);
         }
 
         public String put(String key, String value) {
-            return map.put(key, value);
+            own();
+            String old = map.put(key, value);
+            if ("level".equals(key))
+                setLevel();
+            changedBasic(key);
+
+            return old;
+        }
+
+        /**
+         * Removes the stat added by a failed {@link #update(Update)}
+         */
+        private void remove(String key) {
+            own();
+            map.remove(key);
+            if ("level".equals(key))
+                setLevel();
+            changedBasic(key);
+        }
+
+        /**
+         * Level is read without the lock: it is written first and only then stats depending on it are invalidated,
+         * so a reader between the two can't cache stats of the old level
+         */
+        private void setLevel() {
+            level = parseLevel();
+            derived.invalidateLevel();
+        }
+
+        private Map<String, String> share() {
+            shared = true;
+            return map;
+        }
+
+        private void own() {
+            if (shared) {
+                map = new LinkedHashMap<>(map);
+                shared = false;
+            }
+        }
+
+        private int parseLevel() {
+            String level = map.get("level");
+            try {
+                return (level == null) ? 1 : Integer.parseInt(level);
+            } catch (NumberFormatException e) {
+                return 1;
+            }
         }
     }
 
+    /**
+     * SPECIAL stats stored in a byte per stat indexed by {@link Special#ordinal()}, 0 - stat is not set yet.
+     * Typed accessors do not hash and box anything, String-keyed ones are kept for saves and old code.
+     * The array is copied on write after it has been shared with a {@link CharacterSnapshot}.<br>
+     * Changes made by traits are a separate layer: getters add them to the base stats within 1..10,
+     * setters and saves deal with the base stats only.
+     */
     public class SPECIAL {
-        private Map<String, Integer> map;
+        /**
+         * Volatile, so stats are read without locks. The array is replaced only when a shared one is copied.
+         */
+        private volatile byte[] values = new byte[Special.VALUES.length];
+        private boolean shared;
+        /**
+         * Changes of stats by taken traits, {@link #NO_BONUS} if there are none. Replaced, never changed.
+         */
+        private volatile byte[] bonus = NO_BONUS;
+        private final Map<String, Integer> view = new SpecialMap(this::withBonuses);
 
         SPECIAL(Map<String, Integer> special) throws IllegalSpecialStatException {
-            if (!special.containsKey("s") || !special.containsKey("p") || !special.containsKey("e") ||
-                    !special.containsKey("c") || !special.containsKey("i") || !special.containsKey("a") ||
-                    !special.containsKey("l"))
-            {
-                throw new NullPointerException("Missing stat(-s) for SPECIAL!");
-            }
-            map = new LinkedHashMap<>();
+            for (Special s : Special.VALUES)
+                if (!special.containsKey(s.getKey()))
+                    throw new NullPointerException("Missing stat(-s) for SPECIAL!");
+
+            for (Special s : Special.VALUES)
+                put(s, special.get(s.getKey()));
+        }
 
-            put("s", special.get("s"));
-            put("p", special.get("p"));
-            put("e", special.get("e"));
-            put("c", special.get("c"));
-            put("i", special.get("i"));
-            put("a", special.get("a"));
-            put("l", special.get("l"));
+        SPECIAL() {
+        }
+
+        SPECIAL(byte[] values, boolean shared) {
+            this.values = values;
+            this.shared = shared;
+        }
+
+        public boolean isComplete() {
+            for (byte v : values)
+                if (v == 0)
+                    return false;
+
+            return true;
         }
 
         public Map<String, Integer> get() {
-            return map;
+            return view;
+        }
+
+        /**
+         * @return stat with changes of traits
+         * @throws NullPointerException if the stat is not set yet
+         */
+        public int get(Special s) {
+            return withBonus(getBase(s), bonus[s.ordinal()]);
+        }
+
+        /**
+         * @return stat without changes of traits
+         * @throws NullPointerException if the stat is not set yet
+         */
+        public int getBase(Special s) {
+            int v = values[s.ordinal()];
+            if (v == 0)
+                throw new NullPointerException("Stat " + s.getKey() + " is not set");
+
+            return v;
         }
 
+        /**
+         * @throws NullPointerException if the stat is unknown or not set yet
+         */
         public int get(String k) {
-            return map.get(k);
+            return get(stat(k));
         }
 
-        public void put(String k, int v) throws IllegalSpecialStatException {
+        public void put(Special s, int v) throws IllegalSpecialStatException {
             if (v < 1 || v > 10)
                 throw new IllegalSpecialStatException("Характеристика должна быть в пределах от 1 до 10!");
 
-            map.put(k, v);
+            own();
+            values[s.ordinal()] = (byte) v;
+            derived.invalidate(s);
+            skills.invalidate(s);
+            changed(changeOf(s));
         }
 
-        public void inc(String k) throws CannotIncrementSpecialStatException {
-            int v = map.get(k);
+        public void put(String k, int v) throws IllegalSpecialStatException {
+            Special s = Special.of(k);
+            if (s == null)
+                throw new IllegalSpecialStatException("Неизвестная характеристика SPECIAL: " + k);
 
-            if (v == 10)
+            put(s, v);
+        }
+
+        public void inc(Special s) throws CannotIncrementSpecialStatException {
+            if (values[s.ordinal()] == 0)
+                throw new CannotIncrementSpecialStatException("Характеристика не задана, повысить невозможно!");
+            if (values[s.ordinal()] == 10)
                 throw new CannotIncrementSpecialStatException("Характеристика уже 10, повысить невозможно!");
 
-            map.put(k, v+1);
+            own();
+            values[s.ordinal()]++;
+            derived.invalidate(s);
+            skills.invalidate(s);
+            changed(changeOf(s));
         }
 
-        public void dec(String k) throws CannotDecrementSpecialStatException {
-            int v = map.get(k);
+        public void inc(String k) throws CannotIncrementSpecialStatException {
+            inc(stat(k));
+        }
 
-            if (v == 1)
+        public void dec(Special s) throws CannotDecrementSpecialStatException {
+            if (values[s.ordinal()] == 0)
+                throw new CannotDecrementSpecialStatException("Характеристика не задана, понизить невозможно!");
+            if (values[s.ordinal()] == 1)
                 throw new CannotDecrementSpecialStatException("Характеристика уже 1, понизить невозможно!");
 
-            map.put(k, v-1);
+            own();
+            values[s.ordinal()]--;
+            derived.invalidate(s);
+            skills.invalidate(s);
+            changed(changeOf(s));
+        }
+
+        public void dec(String k) throws CannotDecrementSpecialStatException {
+            dec(stat(k));
+        }
+
+        private byte[] share() {
+            shared = true;
+            return values;
+        }
+
+        /**
+         * Sets changes of stats by traits, guarded by the write lock
+         */
+        private void setBonus(byte[] bonus) {
+            byte[] old = this.bonus;
+            this.bonus = Arrays.equals(bonus, NO_BONUS) ? NO_BONUS : bonus;
+
+            for (Special s : Special.VALUES) {
+                if (old[s.ordinal()] != bonus[s.ordinal()]) {
+                    derived.invalidate(s);
+                    skills.invalidate(s);
+                    changed(changeOf(s));
+                }
+            }
+        }
+
+        /**
+         * @return stats with changes of traits, 0 - stat is not set
+         */
+        private byte[] withBonuses() {
+            byte[] v = values;
+            byte[] b = bonus;
+            if (b == NO_BONUS)
+                return v;
+
+            byte[] result = new byte[v.length];
+            for (int i = 0; i < v.length; i++)
+                result[i] = (v[i] == 0) ? 0 : (byte) withBonus(v[i], b[i]);
+
+            return result;
+        }
+
+        /**
+         * Returns the stat changed by a failed {@link #update(Update)}, the old value may be 0(not set)
+         */
+        private void undo(Special s, byte old) {
+            own();
+            values[s.ordinal()] = old;
+            derived.invalidate(s);
+            skills.invalidate(s);
+            changed(changeOf(s));
+        }
+
+        private void own() {
+            if (shared) {
+                values = values.clone();
+                shared = false;
+            }
+        }
+
+        private Special stat(String k) {
+            Special s = Special.of(k);
+            if (s == null)
+                throw new NullPointerException("Unknown SPECIAL stat " + k);
+
+            return s;
         }
 
         public class CannotIncrementSpecialStatException extends Throwable {
@@ -135,15 +794,545 @@ public class Character {
         }
     }
 
+    /**
+     * Skills of {@link SkillTable} in arrays indexed by id of the skill. Value of the skill is its 'init' formula,
+     * bonus of tagged skill and spent points(doubled for tagged skill).<br>
+     * Change of SPECIAL stat only marks dependent skills as dirty, they are recomputed on the next read.
+     * The table is loaded on the first use of skills.<br>
+     * Spent points and tags are saved by keys of skills, read-only copies of them are kept until they change.
+     */
     class Skills {
+        static final int TAG_BONUS = 20;
+        static final int MAX_VALUE = 300;
+
+        private SkillTable table;
+        private int[] values;
+        private int[] points;
+        /**
+         * Bit masks of tagged and dirty skills, bit index is id of the skill
+         */
+        private long tagged;
+        private long dirty;
+        /**
+         * Copies for snapshots, null after a change
+         */
+        private Map<String, Integer> pointsCopy;
+        private Set<String> taggedCopy;
+
+        public synchronized int get(int id) {
+            table();
+            if ((dirty & (1L << id)) != 0) {
+                int value = table.get(id).init(Character.this) + points[id] * (isTagged(id) ? 2 : 1);
+                if (isTagged(id))
+                    value += TAG_BONUS;
+                value = (int) traits.apply(TraitTable.ALL_SKILLS, traits.apply(table.get(id).getKey(), value));
+
+                values[id] = Math.min(value, MAX_VALUE);
+                dirty &= ~(1L << id);
+            }
+
+            return values[id];
+        }
+
+        /**
+         * @param key Key of the skill(for ex. 'small_guns')
+         */
+        public int get(String key) {
+            return get(id(key));
+        }
+
+        public synchronized boolean isTagged(int id) {
+            return (tagged & (1L << id)) != 0;
+        }
+
+        public synchronized void tag(String key, boolean tag) {
+            int id = id(key);
+            if (tag)
+                tagged |= 1L << id;
+            else
+                tagged &= ~(1L << id);
+            dirty |= 1L << id;
+            taggedCopy = null;
+            sectionModifications.incrementAndGet();
+        }
+
+        /**
+         * @return read-only keys of tagged skills
+         */
+        public synchronized Set<String> getTagged() {
+            if (taggedCopy == null) {
+                Set<String> set = new LinkedHashSet<>();
+                for (long bits = tagged; bits != 0; bits &= bits - 1)
+                    set.add(table.get(Long.numberOfTrailingZeros(bits)).getKey());
+                taggedCopy = Collections.unmodifiableSet(set);
+            }
+
+            return taggedCopy;
+        }
+
+        public synchronized int getPoints(String key) {
+            int id = id(key);
+            return points[id];
+        }
+
+        /**
+         * @return read-only spent points of skills which have them, by keys of skills
+         */
+        public synchronized Map<String, Integer> getPoints() {
+            if (pointsCopy == null) {
+                Map<String, Integer> map = new LinkedHashMap<>();
+                if (table != null)
+                    for (int id = 0; id < points.length; id++)
+                        if (points[id] != 0)
+                            map.put(table.get(id).getKey(), points[id]);
+                pointsCopy = Collections.unmodifiableMap(map);
+            }
+
+            return pointsCopy;
+        }
+
+        /**
+         * Spends skill points on the skill, negative amount takes them back
+         */
+        public synchronized void addPoints(String key, int amount) {
+            int id = id(key);
+            if (points[id] + amount < 0)
+                throw new IllegalArgumentException("Нельзя вернуть больше очков, чем вложено в навык!");
+
+            points[id] += amount;
+            dirty |= 1L << id;
+            pointsCopy = null;
+            sectionModifications.incrementAndGet();
+        }
+
+        /**
+         * Marks skills depending on the SPECIAL stat as dirty
+         */
+        synchronized void invalidate(Special s) {
+            if (table != null)
+                dirty |= table.getDependents(s);
+        }
+
+        synchronized void invalidateAll() {
+            dirty = -1L;
+        }
+
+        private int id(String key) {
+            SkillTable.Skill skill = table().get(key);
+            if (skill == null)
+                throw new IllegalArgumentException("Неизвестный навык " + key);
+
+            return skill.getId();
+        }
+
+        private synchronized SkillTable table() {
+            if (table == null) {
+                table = SkillTable.get();
+                values = new int[table.size()];
+                points = new int[table.size()];
+                dirty = -1L;
+            }
+
+            return table;
+        }
     }
+    /**
+     * Traits taken by the character. Operations of taken traits are folded into totals per target:
+     * value = (new value of '=' or base value + sum of '+=') * product of '*='. Conditional operations
+     * are included only while their condition is true for the current context.<br>
+     * Totals are rebuilt only when a trait is taken or removed or a context changes,
+     * {@link #apply(int, double)} just reads them. SPECIAL operations are summed into a layer over
+     * the base stats(see {@link SPECIAL}), so base stats and names of traits are all that is saved.
+     *
+     * <h4>Usage example:</h4>
+     * <pre>
+     *     character.getTraits().add("One Hander");
+     *     character.getTraits().setContext("weapon", Collections.singletonMap("one_handed", "true"));
+     *     double chance = character.getTraits().apply("hit_chance", 50);
+     * </pre>
+     */
     class Traits {
+        static final int LIMIT = 2;
+
+        private TraitTable table;
+        private final Set<String> taken = new LinkedHashSet<>();
+        /**
+         * Immutable copy of taken traits for snapshots, read without the monitor
+         */
+        private volatile List<String> names = Collections.emptyList();
+        private final Map<String, Map<String, String>> contexts = new HashMap<>();
+        private boolean registered;
+        private volatile Totals totals;
+        /**
+         * Bit mask of taken traits, bit index is {@link TraitTable.Trait#getId()}
+         */
+        private volatile long mask;
+
+        /**
+         * @throws IllegalArgumentException if there is no such trait, it is already taken or the limit is reached
+         */
+        public synchronized void add(String name) {
+            TraitTable.Trait trait = table().get(name);
+            if (trait == null)
+                throw new IllegalArgumentException("Неизвестная черта " + name);
+            if (taken.contains(name))
+                throw new IllegalArgumentException("Черта " + name + " уже взята!");
+            if (taken.size() >= LIMIT)
+                throw new IllegalArgumentException("Можно взять не больше " + LIMIT + " черт!");
+
+            taken.add(name);
+            names = Collections.unmodifiableList(new ArrayList<>(taken));
+            mask |= 1L << trait.getId();
+            updateSpecial();
+            rebuild();
+        }
+
+        /**
+         * @return false if the trait is not taken
+         */
+        public synchronized boolean remove(String name) {
+            if (!taken.remove(name))
+                return false;
+
+            names = Collections.unmodifiableList(new ArrayList<>(taken));
+            mask &= ~(1L << table.get(name).getId());
+            updateSpecial();
+            rebuild();
+            return true;
+        }
+
+        public synchronized Set<String> get() {
+            return new LinkedHashSet<>(taken);
+        }
+
+        public synchronized boolean has(String name) {
+            return taken.contains(name);
+        }
+
+        /**
+         * @return bit mask of taken traits, bit index is {@link TraitTable.Trait#getId()}
+         */
+        public long getMask() {
+            return mask;
+        }
+
+        /**
+         * Sets attributes of the context used by conditions(for ex. 'weapon', 'target').
+         * Conditions are evaluated again only if the attributes have changed.
+         * @param attributes Attributes of the context, null - there is no such context now
+         */
+        public synchronized void setContext(String name, Map<String, String> attributes) {
+            if (Objects.equals(contexts.get(name), attributes))
+                return;
+
+            if (attributes == null)
+                contexts.remove(name);
+            else
+                contexts.put(name, new HashMap<>(attributes));
+
+            if (!taken.isEmpty())
+                rebuild();
+        }
+
+        /**
+         * @param target Target of trait rules(for ex. 'hit_chance')
+         * @return value changed by taken traits, base value if no trait changes the target
+         */
+        public double apply(String target, double base) {
+            Totals t = totals;
+            return (t == null) ? base : t.apply(t.table.indexOf(target), base);
+        }
+
+        /**
+         * @param index Index of the target in {@link TraitTable}
+         * @return value changed by taken traits, base value if no trait changes the target
+         */
+        public double apply(int index, double base) {
+            Totals t = totals;
+            return (t == null) ? base : t.apply(index, base);
+        }
+
+        /**
+         * Sums SPECIAL operations of taken traits into the layer over base stats
+         */
+        private void updateSpecial() {
+            byte[] bonus = new byte[Special.VALUES.length];
+            for (String name : taken) {
+                for (TraitTable.Op op : table.get(name).getOps()) {
+                    if (op.getKind() != TraitTable.Kind.SPECIAL)
+                        continue;
+
+                    // null for all stats('special')
+                    Special target = Special.of(op.getTarget().toLowerCase());
+                    for (Special s : Special.VALUES)
+                        if (target == null || target == s)
+                            bonus[s.ordinal()] += (int) op.getConstant();
+                }
+            }
+            setSpecialBonus(bonus);
+        }
+
+        private void rebuild() {
+            Totals t = new Totals(table);
+            for (String name : taken) {
+                for (TraitTable.Op op : table.get(name).getOps()) {
+                    TraitTable.Condition c = op.getCondition();
+                    if (op.getKind() == TraitTable.Kind.SPECIAL
+                            || (c != null && !c.test(Character.this, contexts.get(c.getContext()))))
+                        continue;
+
+                    t.fold(op);
+                }
+            }
+            totals = t;
+
+            if (!registered) {
+                registerDerived();
+                registered = true;
+            }
+            derived.invalidateAll();
+            skills.invalidateAll();
+        }
+
+        /**
+         * Adds one modifier of derived stat for every derived stat changed by any trait
+         */
+        private void registerDerived() {
+            for (DerivedStat stat : DerivedStat.VALUES) {
+                int index = table.indexOf(stat.getKey());
+                if (index < 0)
+                    continue;
+
+                Set<Special> inputs = EnumSet.noneOf(Special.class);
+                for (TraitTable.Trait trait : table.getTraits())
+                    for (TraitTable.Op op : trait.getOps())
+                        if (op.getIndex() == index)
+                            inputs.addAll(op.getFormula().getInputs());
+
+                derived.addModifier("traits", stat, inputs, (c, v) -> (int) apply(index, v));
+            }
+        }
+
+        private TraitTable table() {
+            if (table == null)
+                table = TraitTable.get();
+
+            return table;
+        }
     }
-    class Perks {
+
+    /**
+     * Folded operations of taken traits, immutable after {@link Character.Traits} has built it
+     */
+    private class Totals {
+        private final TraitTable table;
+        private final Formula[] set;
+        private final double[] add;
+        private final double[] multiply;
+
+        private Totals(TraitTable table) {
+            this.table = table;
+            this.set = new Formula[table.size()];
+            this.add = new double[table.size()];
+            this.multiply = new double[table.size()];
+            Arrays.fill(multiply, 1);
+        }
+
+        private void fold(TraitTable.Op op) {
+            int i = op.getIndex();
+            switch (op.getOperation()) {
+                case SET:
+                    set[i] = op.getFormula();
+                    break;
+                case ADD:
+                    add[i] += op.getConstant();
+                    break;
+                case MULTIPLY:
+                    multiply[i] *= op.getConstant();
+            }
+        }
+
+        private double apply(int index, double base) {
+            if (index < 0)
+                return base;
+
+            double value = (set[index] != null) ? set[index].eval(Character.this) : base;
+            return (value + add[index]) * multiply[index];
+        }
     }
+    /**
+     * Perks taken by the character with their ranks. Eligibility is checked by bit sets of {@link PerkTable}.
+     */
+    class Perks {
+        private PerkTable table;
+        private int[] ranks;
+        /**
+         * Perks taken in all their ranks, bit index is id of the perk
+         */
+        private long[] maxed;
+        private long[] eligible;
+        /**
+         * Copy of taken perks for snapshots, null after a change
+         */
+        private Map<String, Integer> copy;
+
+        /**
+         * @return perks the character can take now, in order of 'perks.json'
+         */
+        public synchronized List<PerkTable.Perk> available() {
+            List<PerkTable.Perk> list = new ArrayList<>();
+            long[] set = update();
+            for (int i = 0; i < set.length; i++)
+                for (long word = set[i]; word != 0; word &= word - 1)
+                    list.add(table.get(i * Long.SIZE + Long.numberOfTrailingZeros(word)));
+
+            return list;
+        }
+
+        /**
+         * Fills the set with perks the character can take now, does not allocate anything
+         * @param result Set of perks from {@link PerkTable#newSet()}
+         */
+        public synchronized void available(long[] result) {
+            System.arraycopy(update(), 0, result, 0, result.length);
+        }
 
-    class Inventory {
+        public synchronized boolean canTake(String name) {
+            PerkTable.Perk perk = table().get(name);
+            return perk != null && PerkTable.contains(update(), perk.getId());
+        }
+
+        /**
+         * Takes the next rank of the perk
+         * @throws IllegalArgumentException if there is no such perk or the character can't take it now
+         */
+        public synchronized void take(String name) {
+            PerkTable.Perk perk = table().get(name);
+            if (perk == null)
+                throw new IllegalArgumentException("Неизвестный перк " + name);
+            if (!PerkTable.contains(update(), perk.getId()))
+                throw new IllegalArgumentException("Перк " + name + " сейчас недоступен!");
+
+            if (++ranks[perk.getId()] >= perk.getRanks())
+                PerkTable.set(maxed, perk.getId());
+            copy = null;
+            sectionModifications.incrementAndGet();
+        }
+
+        /**
+         * Sets taken ranks of the perk without checking its requirements, for ex. on loading a save
+         * @throws IllegalArgumentException if there is no such perk or it has less ranks
+         */
+        public synchronized void setRank(String name, int rank) {
+            PerkTable.Perk perk = table().get(name);
+            if (perk == null)
+                throw new IllegalArgumentException("Неизвестный перк " + name);
+            if (rank < 0 || rank > perk.getRanks())
+                throw new IllegalArgumentException("Неверный ранг перка " + name + ": " + rank);
+
+            ranks[perk.getId()] = rank;
+            if (rank >= perk.getRanks())
+                PerkTable.set(maxed, perk.getId());
+            else
+                PerkTable.clear(maxed, perk.getId());
+            copy = null;
+            sectionModifications.incrementAndGet();
+        }
+
+        /**
+         * @return taken ranks of the perk, 0 if it is not taken
+         */
+        public synchronized int getRank(String name) {
+            PerkTable.Perk perk = table().get(name);
+            return (perk == null) ? 0 : ranks[perk.getId()];
+        }
+
+        /**
+         * @return read-only taken perks with their ranks
+         */
+        public synchronized Map<String, Integer> get() {
+            if (copy == null) {
+                Map<String, Integer> map = new LinkedHashMap<>();
+                if (table != null)
+                    for (int id = 0; id < ranks.length; id++)
+                        if (ranks[id] > 0)
+                            map.put(table.get(id).getName(), ranks[id]);
+                copy = Collections.unmodifiableMap(map);
+            }
+
+            return copy;
+        }
+
+        private long[] update() {
+            table();
+            table.eligible(Character.this, eligible);
+            PerkTable.andNot(eligible, maxed);
+
+            return eligible;
+        }
+
+        private PerkTable table() {
+            if (table == null) {
+                table = PerkTable.get();
+                ranks = new int[table.size()];
+                maxed = table.newSet();
+                eligible = table.newSet();
+            }
+
+            return table;
+        }
     }
 
-}
+    /**
+     * Read-only String-keyed view of set SPECIAL stats in S,P,E,C,I,A,L order
+     */
+    static class SpecialMap extends AbstractMap<String, Integer> {
+        private final Supplier<byte[]> values;
+
+        /**
+         * @param values Array of stats, read on every access
+         */
+        SpecialMap(Supplier<byte[]> values) {
+            this.values = values;
+        }
+
+        @Override
+        public Integer get(Object key) {
+            Special s = (key instanceof String) ? Special.of((String) key) : null;
+            byte v = (s == null) ? 0 : values.get()[s.ordinal()];
+
+            return (v == 0) ? null : (int) v;
+        }
 
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, Integer>> entrySet() {
+            return new AbstractSet<Entry<String, Integer>>() {
+                @Override
+                public Iterator<Entry<String, Integer>> iterator() {
+                    byte[] array = values.get();
+                    List<Entry<String, Integer>> entries = new ArrayList<>(array.length);
+                    for (Special s : Special.VALUES)
+                        if (array[s.ordinal()] != 0)
+                            entries.add(new SimpleImmutableEntry<>(s.getKey(), (int) array[s.ordinal()]));
+
+                    return Collections.unmodifiableList(entries).iterator();
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (byte v : values.get())
+                        if (v != 0)
+                            size++;
+
+                    return size;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.larsson_the.postnuc;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * Generator of random valid characters for load tests, NPC population and balance studies.
+ * A character is generated as a compact record packed in a long: SPECIAL(4 bits per stat),
+ * race, gender and seed of the name. {@link #toCharacter(long)} builds a full {@link Character} from it.<br>
+ * SPECIAL is uniform among all distributions where every stat is within 1..10 and exactly
+ * {@link #SPECIAL_POINTS} points are spent, as after {@code Game.setupSpecial()}.<br>
+ * Batches are generated in parallel by chunks of {@link #CHUNK} records. Every chunk has its own stream
+ * split from the seed in chunk order, so the output depends only on the seed, not on the amount of threads.
+ *
+ * <h4>Usage example:</h4>
+ * <pre>
+ *     long[] records = new CharacterGenerator(42).generate(1_000_000);
+ *     int strength = CharacterGenerator.getSpecial(records[0], Special.S);
+ *     Character character = CharacterGenerator.toCharacter(records[0]);
+ *
+ *     java com.larsson_the.postnuc.CharacterGenerator 10000000 42
+ * </pre>
+ */
+class CharacterGenerator {
+    /**
+     * Points of all SPECIAL stats: 5 for every stat and 5 to distribute
+     */
+    static final int SPECIAL_POINTS = 40;
+    static final String[] GENDERS = {"male", "female"};
+    static final String[] RACES = {"american", "europeoid", "asian", "buryat", "kazakh", "slav"};
+    static final int CHUNK = 4096;
+
+    private static final int STATS = Special.VALUES.length;
+    /**
+     * Points above the minimum of 1 per stat, distributed by bars between stars
+     */
+    private static final int FREE_POINTS = SPECIAL_POINTS - STATS;
+    private static final int SLOTS = FREE_POINTS + STATS - 1;
+    private static final int RACE_SHIFT = 4 * STATS;
+    private static final int GENDER_SHIFT = RACE_SHIFT + 3;
+    private static final int NAME_SHIFT = 32;
+    private static final String CONSONANTS = "bcdfghklmnprstvz";
+    private static final String VOWELS = "aeiou";
+
+    private final long seed;
+
+    CharacterGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return records of count characters, the same for the same seed
+     */
+    public long[] generate(int count) {
+        long[] records = new long[count];
+        SplittableRandom[] streams = streams(count);
+
+        IntStream.range(0, streams.length).parallel().forEach(chunk -> {
+            SplittableRandom random = streams[chunk];
+            for (int i = chunk * CHUNK, end = Math.min(count, i + CHUNK); i < end; i++)
+                records[i] = next(random);
+        });
+
+        return records;
+    }
+
+    /**
+     * @return count full characters, the same for the same seed as characters of {@link #generate(int)}
+     */
+    public List<Character> generateCharacters(int count) {
+        long[] records = generate(count);
+        Character[] characters = new Character[count];
+
+        IntStream.range(0, count).parallel().forEach(i -> characters[i] = toCharacter(records[i]));
+
+        return Arrays.asList(characters);
+    }
+
+    /**
+     * Builds count characters in parallel without keeping them, for ex. to feed a load test
+     * @param consumer Consumer of the characters, called from several threads in no particular order
+     */
+    public void generateCharacters(int count, Consumer<Character> consumer) {
+        SplittableRandom[] streams = streams(count);
+
+        IntStream.range(0, streams.length).parallel().forEach(chunk -> {
+            SplittableRandom random = streams[chunk];
+            for (int i = chunk * CHUNK, end = Math.min(count, i + CHUNK); i < end; i++)
+                consumer.accept(toCharacter(next(random)));
+        });
+    }
+
+    /**
+     * @return record of a random character
+     */
+    static long next(SplittableRandom random) {
+        long record;
+        do {
+            record = special(random);
+        } while (record < 0);
+
+        record |= (long) random.nextInt(RACES.length) << RACE_SHIFT;
+        record |= (long) random.nextInt(GENDERS.length) << GENDER_SHIFT;
+        record |= (long) random.nextInt() << NAME_SHIFT;
+
+        return record;
+    }
+
+    public static int getSpecial(long record, Special s) {
+        return (int) (record >>> (s.ordinal() * 4)) & 0xF;
+    }
+
+    public static String getRace(long record) {
+        return RACES[(int) (record >>> RACE_SHIFT) & 0x7];
+    }
+
+    public static String getGender(long record) {
+        return GENDERS[(int) (record >>> GENDER_SHIFT) & 0x1];
+    }
+
+    /**
+     * @return name of 3..8 latin letters, alternating consonants and vowels
+     */
+    public static String getName(long record) {
+        int x = (int) (record >>> NAME_SHIFT);
+        int length = 3 + Integer.remainderUnsigned(x, 6);
+        char[] name = new char[length];
+
+        for (int i = 0; i < length; i++) {
+            x = x * 0x5DEECE6D + 0xB;
+            String letters = (i % 2 == 0) ? CONSONANTS : VOWELS;
+            name[i] = letters.charAt((x >>> 16) % letters.length());
+        }
+        name[0] = java.lang.Character.toUpperCase(name[0]);
+
+        return new String(name);
+    }
+
+    /**
+     * @return new character of level 1 from the record
+     */
+    public static Character toCharacter(long record) {
+        Map<String, String> basics = new LinkedHashMap<>();
+        basics.put("gender", getGender(record));
+        basics.put("name", getName(record));
+        basics.put("level", "1");
+        basics.put("race", getRace(record));
+
+        Map<String, Integer> special = new LinkedHashMap<>();
+        for (Special s : Special.VALUES)
+            special.put(s.getKey(), getSpecial(record, s));
+
+        try {
+            return new Character(basics, special);
+        } catch (Character.SPECIAL.IllegalSpecialStatException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * Chooses STATS - 1 bars among SLOTS by Floyd's algorithm, stars between bars are points above 1 of the stats
+     * @return packed SPECIAL, -1 if some stat is above 10 and the choice has to be repeated
+     */
+    private static long special(SplittableRandom random) {
+        long bars = 0;
+        for (int j = SLOTS - STATS + 1; j < SLOTS; j++) {
+            int t = random.nextInt(j + 1);
+            bars |= ((bars & (1L << t)) == 0) ? 1L << t : 1L << j;
+        }
+        bars |= 1L << SLOTS;
+
+        long record = 0;
+        int from = 0;
+        for (int i = 0; i < STATS; i++) {
+            int bar = Long.numberOfTrailingZeros(bars);
+            int value = 1 + bar - from;
+            if (value > 10)
+                return -1;
+
+            record |= (long) value << (i * 4);
+            from = bar + 1;
+            bars &= bars - 1;
+        }
+
+        return record;
+    }
+
+    private SplittableRandom[] streams(int count) {
+        SplittableRandom root = new SplittableRandom(seed);
+        SplittableRandom[] streams = new SplittableRandom[(count + CHUNK - 1) / CHUNK];
+        for (int i = 0; i < streams.length; i++)
+            streams[i] = root.split();
+
+        return streams;
+    }
+
+    /**
+     * Reports throughput of records and of full characters with derived stats computed.
+     * Arguments are amount of records(default 1000000) and seed(default 1), checksum is the same for the same ones.
+     */
+    public static void main(String[] args) {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        long seed = (args.length > 1) ? Long.parseLong(args[1]) : 1;
+        CharacterGenerator generator = new CharacterGenerator(seed);
+
+        generator.generate(Math.min(count, 100_000));
+        long start = System.nanoTime();
+        long[] records = generator.generate(count);
+        long time = System.nanoTime() - start;
+
+        System.out.printf("records:    %12d chars/s, checksum %08x%n",
+                count * 1_000_000_000L / Math.max(1, time), Arrays.hashCode(records));
+
+        int characters = Math.max(1, count / 10);
+        LongAdder hitPoints = new LongAdder();
+        start = System.nanoTime();
+        generator.generateCharacters(characters, c -> hitPoints.add(c.getDerived(DerivedStat.HIT_POINTS)));
+        time = System.nanoTime() - start;
+
+        System.out.printf("characters: %12d chars/s, average hp %.2f%n",
+                characters * 1_000_000_000L / Math.max(1, time), hitPoints.doubleValue() / characters);
+    }
+}
@@ -0,0 +1,110 @@
+package com.larsson_the.postnuc;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable state of a {@link Character} taken by {@link Character#snapshot()}. Basics and SPECIAL
+ * are shared with the character, not copied: the character copies a shared section before changing it.
+ * So the snapshot is taken in O(1) and can be read from any thread without locks.<br>
+ * SPECIAL stats are the base ones, changes made by traits are restored from the taken traits.
+ * Skills, perks and inventory are read-only copies kept by the character until they change.
+ */
+class CharacterSnapshot {
+    final Map<String, String> basics;
+    final byte[] special;
+    private final List<String> traits;
+    private final Map<String, Integer> skillPoints;
+    private final Set<String> taggedSkills;
+    private final Map<String, Integer> perks;
+    private final List<Inventory.Slot> inventory;
+    private final Map<String, String> basicsView;
+    private final Map<String, Integer> specialView;
+    private final long modifications;
+
+    /**
+     * @param traits Immutable list of taken traits
+     * @param skillPoints Immutable spent points of skills
+     * @param taggedSkills Immutable keys of tagged skills
+     * @param perks Immutable ranks of taken perks
+     * @param inventory Immutable slots of the inventory
+     */
+    CharacterSnapshot(Map<String, String> basics, byte[] special, List<String> traits,
+                      Map<String, Integer> skillPoints, Set<String> taggedSkills, Map<String, Integer> perks,
+                      List<Inventory.Slot> inventory, long modifications) {
+        this.basics = basics;
+        this.special = special;
+        this.traits = traits;
+        this.skillPoints = skillPoints;
+        this.taggedSkills = taggedSkills;
+        this.perks = perks;
+        this.inventory = inventory;
+        this.basicsView = Collections.unmodifiableMap(basics);
+        this.specialView = new Character.SpecialMap(() -> special);
+        this.modifications = modifications;
+    }
+
+    public String getBasic(String key) {
+        return basics.get(key);
+    }
+
+    public Map<String, String> getBasics() {
+        return basicsView;
+    }
+
+    public int getSpecial(Special s) {
+        return special[s.ordinal()];
+    }
+
+    /**
+     * @return SPECIAL stats by their keys('s', 'p', ...)
+     */
+    public Map<String, Integer> getSpecial() {
+        return specialView;
+    }
+
+    /**
+     * @return names of taken traits in order of taking
+     */
+    public List<String> getTraits() {
+        return traits;
+    }
+
+    /**
+     * @return spent points of skills which have them, by keys of skills
+     */
+    public Map<String, Integer> getSkillPoints() {
+        return skillPoints;
+    }
+
+    public Set<String> getTaggedSkills() {
+        return taggedSkills;
+    }
+
+    /**
+     * @return ranks of taken perks by their names
+     */
+    public Map<String, Integer> getPerks() {
+        return perks;
+    }
+
+    public List<Inventory.Slot> getInventory() {
+        return inventory;
+    }
+
+    /**
+     * @return {@link Character#getModifications()} at the moment of the snapshot
+     */
+    public long getModifications() {
+        return modifications;
+    }
+
+    /**
+     * @return new character with the state of the snapshot, sections are copied only when it changes them
+     */
+    public Character toCharacter() {
+        return new Character(this);
+    }
+}
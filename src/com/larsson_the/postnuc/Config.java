@@ -0,0 +1,82 @@
+package com.larsson_the.postnuc;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Game settings stored in properties file next to the game.
+ * If file or some key is missing - default value is used.
+ *
+ * <h4>Example of postnuc.properties:</h4>
+ * <pre>
+ *     save.format=binary
+ *     save.storage=pack
+ *     save.fsync=false
+ * </pre>
+ */
+class Config {
+    private static Logger log = Logger.getLogger(Config.class.getName());
+
+    private final Properties properties;
+
+    private Config(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Loads config from the file. Missing or broken file gives empty config.
+     */
+    public static Config load(File file) {
+        Properties properties = new Properties();
+
+        if (file.exists()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            } catch (IOException e) {
+                log.warning("Unable to read config " + file + ": " + e.getMessage());
+            }
+        }
+
+        return new Config(properties);
+    }
+
+    public String getString(String key, String def) {
+        return properties.getProperty(key, def).trim();
+    }
+
+    public int getInt(String key, int def) {
+        String value = properties.getProperty(key);
+        if (value == null)
+            return def;
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warning("Config value of " + key + " is not a number: " + value);
+            return def;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean def) {
+        String value = properties.getProperty(key);
+        return (value == null) ? def : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * @return enum constant by case-insensitive name, default if value is unknown
+     */
+    public <E extends Enum<E>> E getEnum(String key, E def) {
+        String value = properties.getProperty(key);
+        if (value == null)
+            return def;
+
+        try {
+            return Enum.valueOf(def.getDeclaringClass(), value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.warning("Unknown config value of " + key + ": " + value);
+            return def;
+        }
+    }
+}
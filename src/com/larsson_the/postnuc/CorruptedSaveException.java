@@ -0,0 +1,11 @@
+package com.larsson_the.postnuc;
+
+import java.io.IOException;
+
+public class CorruptedSaveException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public CorruptedSaveException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,587 @@
+package com.larsson_the.postnuc;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed storage of saves with deduplication. Every save is split into blocks,
+ * block is stored once under its SHA-256 hash in 'blocks' folder and the save becomes a small manifest
+ * of block hashes in 'manifests' folder. Saves of the same character share most of their blocks.<br>
+ * Uncompressed binary saves are split by {@link SaveHeader} and sections of {@link BinarySaveCodec},
+ * large sections and other data(JSON, compressed bodies, journal) - by content-defined chunking,
+ * so insertions do not shift all following blocks.<br>
+ * Appended data(journal batches) is chunked alone and its blocks are added to the manifest,
+ * write into the save replaces only the blocks it touches(for ex. the header), so neither rebuilds the save.<br>
+ * Blocks are written before the manifest, blocks not referenced by any manifest are deleted
+ * when the save is replaced or deleted, and on open(after interrupted writes).
+ * Blocks are checked against their hashes when they are read.<br>
+ * Save files of the folder are imported once by {@link #importFrom(File, FilenameFilter)},
+ * then the store is marked as imported by an empty file '.imported'.<br>
+ * Manifest: [magic 'PNMF'(4)][total length(varint)][block count(varint)]{[length(varint)][hash(32)]}.
+ */
+class DedupStorage implements StorageBackend {
+    private static Logger log = Logger.getLogger(DedupStorage.class.getName());
+
+    private static final byte[] MAGIC = {'P', 'N', 'M', 'F'};
+    private static final int HASH_SIZE = 32;
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String IMPORTED = ".imported";
+
+    private static final int MIN_CHUNK = 256;
+    private static final int MAX_CHUNK = 8 * 1024;
+    /**
+     * Boundary is set when low bits of the rolling hash are zero: 10 bits - 1KB blocks on average
+     */
+    private static final long CHUNK_MASK = (1 << 10) - 1;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x504E5356);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    private final File blocksDir;
+    private final File manifestsDir;
+    private final File importedFlag;
+    private final boolean fsync;
+    private final Map<String, Manifest> manifests;
+    private final Map<String, Integer> refs;
+
+    private long logicalBytes;
+    private long writtenBytes;
+
+    /**
+     * Opens the store, creates its folders if they do not exist. Unreferenced blocks are deleted.
+     * @param fsync if true - blocks and manifests are forced to the disk before they are used
+     */
+    DedupStorage(File dir, boolean fsync) throws IOException {
+        this.blocksDir = new File(dir, "blocks");
+        this.manifestsDir = new File(dir, "manifests");
+        this.importedFlag = new File(dir, IMPORTED);
+        this.fsync = fsync;
+        this.manifests = new HashMap<>();
+        this.refs = new HashMap<>();
+
+        if (!blocksDir.isDirectory() && !blocksDir.mkdirs() || !manifestsDir.isDirectory() && !manifestsDir.mkdirs())
+            throw new IOException("Невозможно создать папку сохранений " + dir);
+
+        File[] files = manifestsDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(TMP_SUFFIX)) {
+                    Files.delete(file.toPath());
+                    continue;
+                }
+
+                try {
+                    Manifest manifest = Manifest.parse(Files.readAllBytes(file.toPath()));
+                    manifests.put(file.getName(), manifest);
+                    reference(manifest, 1);
+                } catch (IOException e) {
+                    log.warning("Broken manifest " + file + ": " + e.getMessage());
+                }
+            }
+        }
+
+        int collected = gc();
+        if (collected > 0)
+            log.info("Collected " + collected + " unreferenced blocks");
+    }
+
+    @Override
+    public synchronized String[] list() {
+        return manifests.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public synchronized Map<String, Long> listModified() {
+        Map<String, Long> times = new HashMap<>();
+        for (String name : manifests.keySet())
+            times.put(name, new File(manifestsDir, name).lastModified());
+
+        return times;
+    }
+
+    @Override
+    public long getStamp() {
+        return manifestsDir.lastModified();
+    }
+
+    @Override
+    public synchronized long length(String name) {
+        Manifest manifest = manifests.get(name);
+        return (manifest == null) ? -1 : manifest.length;
+    }
+
+    @Override
+    public synchronized InputStream open(String name) throws IOException {
+        return new ByteArrayInputStream(readAll(name));
+    }
+
+    @Override
+    public synchronized byte[] read(String name, int position, int length) throws IOException {
+        Manifest manifest = get(name);
+        int end = (int) Math.min(manifest.length, (long) position + length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(0, end - position));
+
+        int offset = 0;
+        for (int i = 0; i < manifest.hashes.size() && offset < end; i++) {
+            int size = manifest.lengths.get(i);
+            if (offset + size > position) {
+                byte[] block = readBlock(manifest.hashes.get(i), size);
+                int from = Math.max(0, position - offset);
+                out.write(block, from, Math.min(size, end - offset) - from);
+            }
+            offset += size;
+        }
+
+        return out.toByteArray();
+    }
+
+    @Override
+    public synchronized void put(String name, byte[] data) throws IOException {
+        Manifest manifest = new Manifest(data.length);
+        int[] bounds = split(data);
+        for (int i = 0; i + 1 < bounds.length; i++)
+            addBlock(manifest, data, bounds[i], bounds[i + 1] - bounds[i]);
+
+        replace(name, manifest);
+        logicalBytes += data.length;
+    }
+
+    /**
+     * Chunks only the appended data, blocks of the save are kept
+     */
+    @Override
+    public synchronized void append(String name, byte[] data) throws IOException {
+        Manifest old = manifests.get(name);
+        if (old == null) {
+            put(name, data);
+            return;
+        }
+
+        Manifest manifest = new Manifest(old.length + data.length);
+        manifest.hashes.addAll(old.hashes);
+        manifest.lengths.addAll(old.lengths);
+
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        splitContent(data, 0, data.length, bounds);
+        for (int i = 0; i + 1 < bounds.size(); i++)
+            addBlock(manifest, data, bounds.get(i), bounds.get(i + 1) - bounds.get(i));
+
+        replace(name, manifest);
+        logicalBytes += data.length;
+    }
+
+    /**
+     * Replaces only the blocks which contain changed bytes, boundaries of blocks are kept
+     */
+    @Override
+    public synchronized void write(String name, int position, byte[] data) throws IOException {
+        Manifest old = get(name);
+        if (position < 0 || position + data.length > old.length)
+            throw new IOException("Запись за пределами сохранения " + name);
+
+        Manifest manifest = new Manifest(old.length);
+        int offset = 0;
+        for (int i = 0; i < old.hashes.size(); i++) {
+            String hash = old.hashes.get(i);
+            int size = old.lengths.get(i);
+
+            if (offset < position + data.length && offset + size > position) {
+                byte[] block = readBlock(hash, size);
+                int from = Math.max(position, offset);
+                int to = Math.min(position + data.length, offset + size);
+                System.arraycopy(data, from - position, block, from - offset, to - from);
+                addBlock(manifest, block, 0, size);
+            } else {
+                manifest.hashes.add(hash);
+                manifest.lengths.add(size);
+            }
+            offset += size;
+        }
+
+        replace(name, manifest);
+        logicalBytes += data.length;
+    }
+
+    @Override
+    public synchronized boolean delete(String name) throws IOException {
+        Manifest manifest = manifests.remove(name);
+        if (manifest == null)
+            return false;
+
+        Files.deleteIfExists(new File(manifestsDir, name).toPath());
+        release(manifest);
+
+        return true;
+    }
+
+    /**
+     * @return true if saves were imported by {@link #importFrom(File, FilenameFilter)}.
+     * Stores created before the flag are taken as imported if they have any saves.
+     */
+    public synchronized boolean isImported() {
+        return importedFlag.exists() || !manifests.isEmpty();
+    }
+
+    /**
+     * Copies save files from the folder into the store. Already stored saves are not overwritten.
+     * Then the store is marked as imported, even if the folder is empty.
+     * @return amount of imported saves
+     */
+    public synchronized int importFrom(File dir, FilenameFilter filter) throws IOException {
+        File[] files = dir.listFiles(filter);
+
+        int imported = 0;
+        for (File f : (files == null) ? new File[0] : files) {
+            if (!f.isFile() || manifests.containsKey(f.getName()))
+                continue;
+
+            put(f.getName(), Files.readAllBytes(f.toPath()));
+            imported++;
+        }
+
+        if (!importedFlag.exists())
+            Files.createFile(importedFlag.toPath());
+
+        return imported;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Deletes all blocks not referenced by any manifest
+     * @return amount of deleted blocks
+     */
+    public synchronized int gc() throws IOException {
+        int collected = 0;
+
+        File[] dirs = blocksDir.listFiles();
+        if (dirs == null)
+            return 0;
+
+        for (File dir : dirs) {
+            File[] blocks = dir.listFiles();
+            if (blocks == null)
+                continue;
+
+            for (File block : blocks) {
+                if (!refs.containsKey(block.getName())) {
+                    Files.delete(block.toPath());
+                    collected++;
+                }
+            }
+        }
+
+        return collected;
+    }
+
+    /**
+     * @return amount of unique blocks in the store
+     */
+    public synchronized int getBlockCount() {
+        return refs.size();
+    }
+
+    /**
+     * @return total size of all saves as they are read
+     */
+    public synchronized long getStoredBytes() {
+        long bytes = 0;
+        for (Manifest manifest : manifests.values())
+            bytes += manifest.length;
+
+        return bytes;
+    }
+
+    /**
+     * @return size of blocks and manifests on the disk
+     */
+    public synchronized long getDiskBytes() {
+        long bytes = 0;
+        for (String name : manifests.keySet())
+            bytes += new File(manifestsDir, name).length();
+        for (String hash : refs.keySet())
+            bytes += blockFile(hash).length();
+
+        return bytes;
+    }
+
+    /**
+     * @return bytes of saves put since opening
+     */
+    public synchronized long getLogicalBytes() {
+        return logicalBytes;
+    }
+
+    /**
+     * @return bytes of blocks and manifests written to the disk since opening
+     */
+    public synchronized long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /**
+     * Splits data into blocks
+     * @return offsets of block boundaries, from 0 to data.length
+     */
+    static int[] split(byte[] data) {
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+
+        int pos = splitSections(data, bounds);
+        splitContent(data, pos, data.length, bounds);
+
+        int[] result = new int[bounds.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = bounds.get(i);
+
+        return result;
+    }
+
+    /**
+     * Sets boundaries after the header and after every section of uncompressed binary save
+     * @return offset where sections end, 0 if data is not an uncompressed binary save
+     */
+    private static int splitSections(byte[] data, List<Integer> bounds) {
+        try {
+            SaveHeader header = SaveHeader.parse(data, Math.min(data.length, SaveHeader.SIZE));
+            if (header == null || header.getFormat() != SaveFormat.BINARY
+                    || header.getCompression() != SaveCompression.NONE)
+                return 0;
+
+            ByteArrayInputStream in = new ByteArrayInputStream(data);
+            in.skip(header.getSize());
+            bounds.add(header.getSize());
+
+            while (BinarySaveCodec.readVarint(in) != BinarySaveCodec.SECTION_END) {
+                int length = BinarySaveCodec.readVarint(in);
+                if (length < 0 || length > in.available())
+                    break;
+
+                int start = data.length - in.available();
+                in.skip(length);
+                splitContent(data, start, start + length, bounds);
+            }
+
+            return bounds.get(bounds.size() - 1);
+        } catch (IOException e) {
+            bounds.subList(1, bounds.size()).clear();
+            return 0;
+        }
+    }
+
+    /**
+     * Content-defined chunking(gear rolling hash) of the range of data. Boundary is always set at the end.
+     */
+    private static void splitContent(byte[] data, int from, int to, List<Integer> bounds) {
+        long hash = 0;
+        int start = from;
+
+        for (int i = from; i < to; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            int size = i + 1 - start;
+
+            if (size >= MIN_CHUNK && (hash & CHUNK_MASK) == 0 || size >= MAX_CHUNK) {
+                bounds.add(i + 1);
+                start = i + 1;
+                hash = 0;
+            }
+        }
+
+        if (start < to)
+            bounds.add(to);
+    }
+
+    private byte[] readAll(String name) throws IOException {
+        Manifest manifest = get(name);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) manifest.length);
+
+        for (int i = 0; i < manifest.hashes.size(); i++)
+            out.write(readBlock(manifest.hashes.get(i), manifest.lengths.get(i)));
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws CorruptedSaveException if the block does not match its hash
+     */
+    private byte[] readBlock(String hash, int length) throws IOException {
+        byte[] block = Files.readAllBytes(blockFile(hash).toPath());
+        if (block.length != length || !hash.equals(hash(block, 0, block.length)))
+            throw new CorruptedSaveException("Блок " + hash + " повреждён!");
+
+        return block;
+    }
+
+    /**
+     * Stores the range of data as a block if there is no such block yet and adds it to the manifest.
+     * Block file left by an interrupted write is checked, it is written again if it is broken.
+     */
+    private void addBlock(Manifest manifest, byte[] data, int from, int size) throws IOException {
+        String hash = hash(data, from, size);
+
+        File block = blockFile(hash);
+        if (!refs.containsKey(hash) && !isIntact(block, hash)) {
+            block.getParentFile().mkdirs();
+            writeFile(block, data, from, size);
+        }
+
+        manifest.hashes.add(hash);
+        manifest.lengths.add(size);
+    }
+
+    private static boolean isIntact(File block, String hash) throws IOException {
+        if (!block.isFile())
+            return false;
+
+        byte[] bytes = Files.readAllBytes(block.toPath());
+        return hash.equals(hash(bytes, 0, bytes.length));
+    }
+
+    /**
+     * Writes the manifest of the save, its blocks must be written already
+     */
+    private void replace(String name, Manifest manifest) throws IOException {
+        byte[] bytes = manifest.toBytes();
+        writeFile(new File(manifestsDir, name), bytes, 0, bytes.length);
+
+        reference(manifest, 1);
+        Manifest old = manifests.put(name, manifest);
+        if (old != null)
+            release(old);
+    }
+
+    private Manifest get(String name) throws FileNotFoundException {
+        Manifest manifest = manifests.get(name);
+        if (manifest == null)
+            throw new FileNotFoundException("Сохранение " + name + " не найдено!");
+
+        return manifest;
+    }
+
+    private void reference(Manifest manifest, int delta) {
+        for (String hash : manifest.hashes)
+            refs.merge(hash, delta, Integer::sum);
+    }
+
+    /**
+     * Decrements references of the manifest blocks, deletes blocks which are not referenced anymore
+     */
+    private void release(Manifest manifest) {
+        for (String hash : manifest.hashes) {
+            if (refs.merge(hash, -1, Integer::sum) > 0)
+                continue;
+
+            refs.remove(hash);
+            File block = blockFile(hash);
+            if (!block.delete())
+                log.warning("Unable to delete block " + block);
+        }
+    }
+
+    private File blockFile(String hash) {
+        return new File(new File(blocksDir, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Writes the file through temp file and atomic rename
+     */
+    private void writeFile(File file, byte[] data, int off, int length) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + TMP_SUFFIX);
+
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(data, off, length);
+
+            if (fsync)
+                fos.getFD().sync();
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        writtenBytes += length;
+    }
+
+    /**
+     * @return SHA-256 of the range of data in hex
+     */
+    private static String hash(byte[] data, int from, int size) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        digest.update(data, from, size);
+        return toHex(digest.digest());
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(java.lang.Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(java.lang.Character.forDigit(b & 0xF, 16));
+
+        return sb.toString();
+    }
+
+    private static class Manifest {
+        private final long length;
+        private final List<String> hashes = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+
+        private Manifest(long length) {
+            this.length = length;
+        }
+
+        private static Manifest parse(byte[] bytes) throws IOException {
+            if (bytes.length < MAGIC.length || !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC))
+                throw new CorruptedSaveException("Неверный манифест сохранения!");
+
+            ByteArrayInputStream in = new ByteArrayInputStream(bytes, MAGIC.length, bytes.length - MAGIC.length);
+            Manifest manifest = new Manifest(BinarySaveCodec.readVarint(in));
+            int count = BinarySaveCodec.readVarint(in);
+
+            byte[] hash = new byte[HASH_SIZE];
+            for (int i = 0; i < count; i++) {
+                manifest.lengths.add(BinarySaveCodec.readVarint(in));
+                if (in.read(hash, 0, HASH_SIZE) != HASH_SIZE)
+                    throw new CorruptedSaveException("Манифест сохранения обрезан!");
+                manifest.hashes.add(toHex(hash));
+            }
+
+            return manifest;
+        }
+
+        private byte[] toBytes() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16 + hashes.size() * (HASH_SIZE + 2));
+            out.write(MAGIC);
+            BinarySaveCodec.writeVarint(out, (int) length);
+            BinarySaveCodec.writeVarint(out, hashes.size());
+
+            for (int i = 0; i < hashes.size(); i++) {
+                BinarySaveCodec.writeVarint(out, lengths.get(i));
+                for (int j = 0; j < HASH_SIZE; j++)
+                    out.write(Integer.parseInt(hashes.get(i).substring(j * 2, j * 2 + 2), 16));
+            }
+
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.larsson_the.postnuc;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+/**
+ * Statistics derived from SPECIAL and level of the character. Base values follow the classic rules,
+ * traits and perks change them by {@link DerivedStats.Modifier}s.<br>
+ * Keys are the names used in 'traits.json'(for ex. 'carry_weight').
+ */
+enum DerivedStat {
+    HIT_POINTS("hp", true, c -> 15 + c.getSpecial(Special.S) + 2 * c.getSpecial(Special.E)
+            + (c.getLevel() - 1) * (2 + c.getSpecial(Special.E) / 2), Special.S, Special.E),
+    ACTION_POINTS("ap", false, c -> 5 + c.getSpecial(Special.A) / 2, Special.A),
+    CARRY_WEIGHT("carry_weight", false, c -> 25 + 25 * c.getSpecial(Special.S), Special.S),
+    ARMOR_CLASS("ac", false, c -> c.getSpecial(Special.A), Special.A),
+    CRITICAL_CHANCE("crit_chance", false, c -> c.getSpecial(Special.L), Special.L),
+    HEALING_RATE("healing", false, c -> Math.max(1, c.getSpecial(Special.E) / 3), Special.E),
+    MELEE_DAMAGE("melee_damage", false, c -> Math.max(1, c.getSpecial(Special.S) - 5), Special.S),
+    SEQUENCE("combat_sequence", false, c -> 2 * c.getSpecial(Special.P), Special.P),
+    POISON_RESIST("poison_resist", false, c -> 5 * c.getSpecial(Special.E), Special.E),
+    RADIATION_RESIST("rad_resist", false, c -> 2 * c.getSpecial(Special.E), Special.E);
+
+    /**
+     * All stats in order, {@link #values()} creates a new array on every call
+     */
+    static final DerivedStat[] VALUES = values();
+
+    private final String key;
+    private final boolean levelDependent;
+    private final ToIntFunction<Character> formula;
+    private final Set<Special> inputs;
+
+    DerivedStat(String key, boolean levelDependent, ToIntFunction<Character> formula, Special... inputs) {
+        this.key = key;
+        this.levelDependent = levelDependent;
+        this.formula = formula;
+        this.inputs = EnumSet.noneOf(Special.class);
+        for (Special s : inputs)
+            this.inputs.add(s);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return true if the base value depends on level of the character
+     */
+    public boolean isLevelDependent() {
+        return levelDependent;
+    }
+
+    /**
+     * @return SPECIAL stats used by the base formula
+     */
+    public Set<Special> getInputs() {
+        return inputs;
+    }
+
+    /**
+     * @return value by the base formula, without modifiers
+     */
+    public int base(Character character) {
+        return formula.applyAsInt(character);
+    }
+
+    /**
+     * @return stat by its key, null if there is no such stat
+     */
+    public static DerivedStat of(String key) {
+        for (DerivedStat stat : VALUES)
+            if (stat.key.equals(key))
+                return stat;
+
+        return null;
+    }
+}
@@ -0,0 +1,153 @@
+package com.larsson_the.postnuc;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Cached {@link DerivedStat}s of the character. Every stat depends on some SPECIAL stats, level
+ * and {@link Modifier}s of traits and perks, which can read SPECIAL stats too.<br>
+ * For every input the engine keeps a bit mask of dependent stats. Change of the input only marks
+ * dependent stats as dirty, dirty stat is recomputed on the next read, other reads return the cached value.
+ *
+ * <h4>Usage example:</h4>
+ * <pre>
+ *     DerivedStats derived = character.getDerivedStats();
+ *     derived.addModifier("Small Frame", DerivedStat.CARRY_WEIGHT, EnumSet.of(Special.S),
+ *             (c, v) -> 25 + 15 * c.getSpecial(Special.S));
+ *     int weight = derived.get(DerivedStat.CARRY_WEIGHT);
+ * </pre>
+ */
+class DerivedStats {
+    private final Character character;
+    private final int[] values = new int[DerivedStat.VALUES.length];
+    /**
+     * Bit mask of stats to recompute, bit index is {@link DerivedStat#ordinal()}
+     */
+    private long dirty;
+    /**
+     * Masks of stats depending on every SPECIAL stat, by {@link Special#ordinal()}
+     */
+    private final long[] specialDependents = new long[Special.VALUES.length];
+    private long levelDependents;
+    private final List<List<Entry>> modifiers = new ArrayList<>(DerivedStat.VALUES.length);
+    private long recomputations;
+
+    DerivedStats(Character character) {
+        this.character = character;
+
+        for (DerivedStat stat : DerivedStat.VALUES) {
+            modifiers.add(new ArrayList<>());
+            link(stat, stat.getInputs());
+            if (stat.isLevelDependent())
+                levelDependents |= bit(stat);
+        }
+        dirty = (1L << DerivedStat.VALUES.length) - 1;
+    }
+
+    /**
+     * @return current value of the stat with all modifiers
+     */
+    public synchronized int get(DerivedStat stat) {
+        if ((dirty & bit(stat)) != 0) {
+            int value = stat.base(character);
+            for (Entry e : modifiers.get(stat.ordinal()))
+                value = e.modifier.apply(character, value);
+
+            values[stat.ordinal()] = value;
+            dirty &= ~bit(stat);
+            recomputations++;
+        }
+
+        return values[stat.ordinal()];
+    }
+
+    /**
+     * Adds modifier applied after the base formula and earlier modifiers of the stat
+     * @param source Name of trait or perk, used to remove its modifiers
+     * @param inputs SPECIAL stats read by the modifier
+     */
+    public synchronized void addModifier(String source, DerivedStat stat, Set<Special> inputs, Modifier modifier) {
+        modifiers.get(stat.ordinal()).add(new Entry(source, modifier));
+        link(stat, inputs);
+        dirty |= bit(stat);
+    }
+
+    /**
+     * Removes all modifiers of the trait or perk
+     * @return true if there were any
+     */
+    public synchronized boolean removeModifiers(String source) {
+        boolean removed = false;
+
+        for (DerivedStat stat : DerivedStat.VALUES) {
+            for (Iterator<Entry> it = modifiers.get(stat.ordinal()).iterator(); it.hasNext(); ) {
+                if (it.next().source.equals(source)) {
+                    it.remove();
+                    dirty |= bit(stat);
+                    removed = true;
+                }
+            }
+        }
+        // Stale links only cause extra recomputations, so dependencies are not rebuilt here
+
+        return removed;
+    }
+
+    /**
+     * Marks stats depending on the SPECIAL stat as dirty
+     */
+    public synchronized void invalidate(Special s) {
+        dirty |= specialDependents[s.ordinal()];
+    }
+
+    /**
+     * Marks stats depending on level as dirty
+     */
+    public synchronized void invalidateLevel() {
+        dirty |= levelDependents;
+    }
+
+    /**
+     * Marks all stats as dirty
+     */
+    public synchronized void invalidateAll() {
+        dirty = (1L << DerivedStat.VALUES.length) - 1;
+    }
+
+    /**
+     * @return amount of recomputed values since creation
+     */
+    public synchronized long getRecomputations() {
+        return recomputations;
+    }
+
+    private void link(DerivedStat stat, Set<Special> inputs) {
+        for (Special s : inputs)
+            specialDependents[s.ordinal()] |= bit(stat);
+    }
+
+    private static long bit(DerivedStat stat) {
+        return 1L << stat.ordinal();
+    }
+
+    @FunctionalInterface
+    public interface Modifier {
+        /**
+         * @param value Value after the base formula and previous modifiers
+         * @return new value of the stat
+         */
+        int apply(Character character, int value);
+    }
+
+    private static class Entry {
+        private final String source;
+        private final Modifier modifier;
+
+        private Entry(String source, Modifier modifier) {
+            this.source = source;
+            this.modifier = modifier;
+        }
+    }
+}
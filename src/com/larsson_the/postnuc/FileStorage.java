@@ -0,0 +1,269 @@
+package com.larsson_the.postnuc;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Saves stored as files in the saves folder. Path of the folder is resolved once on creation.<br>
+ * Files are replaced through a temp file and atomic rename.<br>
+ * After {@link #watch()} listing of the folder is cached and kept current by a {@link WatchService},
+ * so {@link #list()} does not touch the disk, but changes made by other programs still show up.
+ */
+class FileStorage implements StorageBackend {
+    private static Logger log = Logger.getLogger(FileStorage.class.getName());
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final boolean fsync;
+    /**
+     * Cached names of files, null if the folder is not watched
+     */
+    private volatile Set<String> cache;
+    private WatchService watcher;
+    private Thread watchThread;
+
+    /**
+     * Creates the folder if it does not exist
+     * @param fsync if true - file contents are forced to the disk after every change
+     */
+    FileStorage(File dir, boolean fsync) throws DirectoryCreatingException, InvalidPathException {
+        this.dir = dir.getAbsoluteFile();
+        this.fsync = fsync;
+
+        if (this.dir.exists() && !this.dir.isDirectory())
+            throw new InvalidPathException("Папка для сохранений является файлом!");
+        if (!this.dir.exists() && !this.dir.mkdirs())
+            throw new DirectoryCreatingException("Невозможно создать папку сохранений(возможно, дело в правах доступа)");
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Starts watching the folder. Until then every {@link #list()} reads the folder.
+     * @return false if the folder can't be watched
+     */
+    public synchronized boolean watch() {
+        if (watcher != null)
+            return true;
+
+        try {
+            watcher = dir.toPath().getFileSystem().newWatchService();
+            dir.toPath().register(watcher, ENTRY_CREATE, ENTRY_DELETE);
+            // Registered before the scan: changes made during the scan come as events
+            cache = new ConcurrentSkipListSet<>(Arrays.asList(scan()));
+        } catch (IOException e) {
+            log.warning("Unable to watch " + dir + ": " + e.getMessage());
+            close();
+            return false;
+        }
+
+        WatchService service = watcher;
+        watchThread = new Thread(() -> processEvents(service), "saves-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+
+        return true;
+    }
+
+    @Override
+    public String[] list() throws IOException {
+        Set<String> names = cache;
+        return (names != null) ? names.toArray(new String[0]) : scan();
+    }
+
+    private String[] scan() throws IOException {
+        String[] names = dir.list((d, name) -> !name.endsWith(TMP_SUFFIX));
+        if (names == null)
+            throw new IOException("Невозможно прочитать папку сохранений " + dir);
+
+        return names;
+    }
+
+    /**
+     * @param service Watch service of the thread, {@link #close()} closes it and clears the field
+     */
+    private void processEvents(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Closed storage
+                return;
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    try {
+                        cache = new ConcurrentSkipListSet<>(Arrays.asList(scan()));
+                    } catch (IOException e) {
+                        log.warning(e.getMessage());
+                    }
+                    continue;
+                }
+
+                String name = event.context().toString();
+                if (!name.endsWith(TMP_SUFFIX))
+                    refresh(name);
+            }
+
+            if (!key.reset()) {
+                if (isWatching(service)) {
+                    log.warning("Saves folder " + dir + " is not watched anymore");
+                    cache = null;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false if the storage was closed or watches with another service
+     */
+    private synchronized boolean isWatching(WatchService service) {
+        return watcher == service;
+    }
+
+    /**
+     * Updates cached listing by the actual state of the file: events may come after our own later changes
+     */
+    private void refresh(String name) {
+        Set<String> names = cache;
+        if (names == null)
+            return;
+
+        if (new File(dir, name).isFile())
+            names.add(name);
+        else
+            names.remove(name);
+    }
+
+    @Override
+    public Map<String, Long> listModified() throws IOException {
+        File[] files = dir.listFiles((d, name) -> !name.endsWith(TMP_SUFFIX));
+        if (files == null)
+            throw new IOException("Невозможно прочитать папку сохранений " + dir);
+
+        Map<String, Long> times = new HashMap<>();
+        for (File file : files)
+            times.put(file.getName(), file.lastModified());
+
+        return times;
+    }
+
+    @Override
+    public long getStamp() {
+        return dir.lastModified();
+    }
+
+    @Override
+    public long length(String name) {
+        File file = new File(dir, name);
+        return file.isFile() ? file.length() : -1;
+    }
+
+    @Override
+    public InputStream open(String name) throws IOException {
+        return new FileInputStream(new File(dir, name));
+    }
+
+    @Override
+    public byte[] read(String name, int position, int length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, name), "r")) {
+            byte[] data = new byte[(int) Math.max(0, Math.min(length, raf.length() - position))];
+            raf.seek(position);
+            raf.readFully(data);
+
+            return data;
+        }
+    }
+
+    @Override
+    public void put(String name, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        File tmp = new File(dir, name + TMP_SUFFIX);
+
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(data);
+
+            if (fsync)
+                fos.getFD().sync();
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        refresh(name);
+    }
+
+    @Override
+    public void append(String name, byte[] data) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(new File(dir, name), true)) {
+            fos.write(data);
+
+            if (fsync)
+                fos.getFD().sync();
+        }
+        refresh(name);
+    }
+
+    @Override
+    public void write(String name, int position, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        if (!file.isFile())
+            throw new FileNotFoundException("Сохранение " + name + " не найдено!");
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (position + data.length > raf.length())
+                throw new IOException("Запись за пределами сохранения " + name);
+
+            raf.seek(position);
+            raf.write(data);
+
+            if (fsync)
+                raf.getFD().sync();
+        }
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException {
+        boolean deleted = Files.deleteIfExists(new File(dir, name).toPath());
+        refresh(name);
+
+        return deleted;
+    }
+
+    /**
+     * Stops watching the folder
+     */
+    @Override
+    public synchronized void close() {
+        cache = null;
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                log.warning(e.getMessage());
+            }
+            watcher = null;
+        }
+        if (watchThread != null) {
+            watchThread.interrupt();
+            watchThread = null;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.larsson_the.postnuc;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Arithmetic formula over SPECIAL stats from data files(for ex. '40 + (0.5 * S) + (0.5 * A)').
+ * Supports numbers, stats S,P,E,C,I,A,L, + - * / and parentheses.<br>
+ * Formula is parsed once. Linear formulas(all formulas of 'skills.json') are compiled
+ * to a constant and coefficient per stat, others - to a tree of evaluators with folded constants.
+ *
+ * <h4>Usage example:</h4>
+ * <pre>
+ *     Formula f = Formula.compile("5 + (4 * A)");
+ *     int value = (int) f.eval(character);
+ * </pre>
+ */
+class Formula {
+    private final String source;
+    private final Node node;
+    private final Set<Special> inputs;
+
+    private Formula(String source, Node node, Set<Special> inputs) {
+        this.source = source;
+        this.node = node;
+        this.inputs = inputs;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the formula has syntax error or unknown name
+     */
+    public static Formula compile(String source) {
+        Parser parser = new Parser(source);
+        Expr expr = parser.expression();
+        parser.skipSpaces();
+        if (parser.pos < source.length())
+            throw parser.error("Лишние символы");
+
+        Set<Special> inputs = EnumSet.noneOf(Special.class);
+        inputs.addAll(expr.inputs);
+
+        return new Formula(source, expr.toNode(), inputs);
+    }
+
+    public double eval(Character character) {
+        return node.eval(character);
+    }
+
+    /**
+     * @return true if the formula does not read any stats
+     */
+    public boolean isConstant() {
+        return inputs.isEmpty();
+    }
+
+    /**
+     * @return SPECIAL stats read by the formula
+     */
+    public Set<Special> getInputs() {
+        return inputs;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    @FunctionalInterface
+    private interface Node {
+        double eval(Character character);
+    }
+
+    /**
+     * Parsed subexpression. Linear one keeps constant and coefficients, other - evaluator.
+     */
+    private static class Expr {
+        private double constant;
+        private double[] coefficients;
+        private Node node;
+        private final Set<Special> inputs = EnumSet.noneOf(Special.class);
+
+        private static Expr constant(double value) {
+            Expr e = new Expr();
+            e.constant = value;
+            e.coefficients = new double[Special.VALUES.length];
+
+            return e;
+        }
+
+        private static Expr stat(Special s) {
+            Expr e = constant(0);
+            e.coefficients[s.ordinal()] = 1;
+            e.inputs.add(s);
+
+            return e;
+        }
+
+        private boolean isConstant() {
+            if (coefficients == null)
+                return false;
+            for (double c : coefficients)
+                if (c != 0)
+                    return false;
+
+            return true;
+        }
+
+        private Node toNode() {
+            if (node != null)
+                return node;
+
+            double k = constant;
+            int n = 0;
+            for (double c : coefficients)
+                if (c != 0)
+                    n++;
+
+            // Only stats with non-zero coefficients are read
+            Special[] stats = new Special[n];
+            double[] cs = new double[n];
+            for (int i = 0, j = 0; i < coefficients.length; i++) {
+                if (coefficients[i] != 0) {
+                    stats[j] = Special.VALUES[i];
+                    cs[j++] = coefficients[i];
+                }
+            }
+
+            if (n == 0)
+                return c -> k;
+            return c -> {
+                double value = k;
+                for (int i = 0; i < stats.length; i++)
+                    value += cs[i] * c.getSpecial(stats[i]);
+
+                return value;
+            };
+        }
+
+        private static Expr combine(char op, Expr a, Expr b) {
+            if (a.coefficients != null && b.coefficients != null) {
+                if (op == '+' || op == '-') {
+                    double sign = (op == '+') ? 1 : -1;
+                    Expr e = constant(a.constant + sign * b.constant);
+                    for (int i = 0; i < e.coefficients.length; i++)
+                        e.coefficients[i] = a.coefficients[i] + sign * b.coefficients[i];
+                    e.inputs.addAll(a.inputs);
+                    e.inputs.addAll(b.inputs);
+
+                    return e;
+                }
+                if (op == '*' && (a.isConstant() || b.isConstant())) {
+                    Expr k = a.isConstant() ? a : b, v = a.isConstant() ? b : a;
+                    Expr e = constant(v.constant * k.constant);
+                    for (int i = 0; i < e.coefficients.length; i++)
+                        e.coefficients[i] = v.coefficients[i] * k.constant;
+                    e.inputs.addAll(v.inputs);
+
+                    return e;
+                }
+                if (op == '/' && b.isConstant()) {
+                    Expr e = constant(a.constant / b.constant);
+                    for (int i = 0; i < e.coefficients.length; i++)
+                        e.coefficients[i] = a.coefficients[i] / b.constant;
+                    e.inputs.addAll(a.inputs);
+
+                    return e;
+                }
+            }
+
+            Node x = a.toNode(), y = b.toNode();
+            Expr e = new Expr();
+            switch (op) {
+                case '+': e.node = c -> x.eval(c) + y.eval(c); break;
+                case '-': e.node = c -> x.eval(c) - y.eval(c); break;
+                case '*': e.node = c -> x.eval(c) * y.eval(c); break;
+                default: e.node = c -> x.eval(c) / y.eval(c);
+            }
+            e.inputs.addAll(a.inputs);
+            e.inputs.addAll(b.inputs);
+
+            return e;
+        }
+    }
+
+    /**
+     * Recursive descent parser: expression = term {(+|-) term}, term = factor {(*|/) factor},
+     * factor = number | stat | (expression) | -factor
+     */
+    private static class Parser {
+        private final String s;
+        private int pos;
+
+        private Parser(String s) {
+            this.s = s;
+        }
+
+        private Expr expression() {
+            Expr e = term();
+            char op;
+            while ((op = peek()) == '+' || op == '-') {
+                pos++;
+                e = Expr.combine(op, e, term());
+            }
+
+            return e;
+        }
+
+        private Expr term() {
+            Expr e = factor();
+            char op;
+            while ((op = peek()) == '*' || op == '/') {
+                pos++;
+                e = Expr.combine(op, e, factor());
+            }
+
+            return e;
+        }
+
+        private Expr factor() {
+            char c = peek();
+
+            if (c == '(') {
+                pos++;
+                Expr e = expression();
+                if (peek() != ')')
+                    throw error("Ожидается ')'");
+                pos++;
+
+                return e;
+            }
+            if (c == '-') {
+                pos++;
+                return Expr.combine('*', Expr.constant(-1), factor());
+            }
+            if (java.lang.Character.isDigit(c) || c == '.') {
+                int start = pos;
+                while (pos < s.length() && (java.lang.Character.isDigit(s.charAt(pos)) || s.charAt(pos) == '.'))
+                    pos++;
+                try {
+                    return Expr.constant(Double.parseDouble(s.substring(start, pos)));
+                } catch (NumberFormatException e) {
+                    throw error("Неверное число");
+                }
+            }
+            if (java.lang.Character.isLetter(c)) {
+                int start = pos;
+                while (pos < s.length() && (java.lang.Character.isLetterOrDigit(s.charAt(pos)) || s.charAt(pos) == '_'))
+                    pos++;
+                String name = s.substring(start, pos);
+                Special stat = Special.of(name.toLowerCase());
+                if (stat == null || name.length() != 1 || !java.lang.Character.isUpperCase(name.charAt(0))) {
+                    pos = start;
+                    throw error("Неизвестное имя " + name);
+                }
+
+                return Expr.stat(stat);
+            }
+
+            throw error("Ожидается число, характеристика или '('");
+        }
+
+        private char peek() {
+            skipSpaces();
+            return (pos < s.length()) ? s.charAt(pos) : '\0';
+        }
+
+        private void skipSpaces() {
+            while (pos < s.length() && java.lang.Character.isWhitespace(s.charAt(pos)))
+                pos++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " в формуле '" + s + "' на позиции " + pos);
+        }
+    }
+}
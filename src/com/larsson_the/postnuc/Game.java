@@ -1,22 +1,39 @@
 package com.larsson_the.postnuc;
 
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 import java.io.*;
 import java.net.URISyntaxException;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
 public class Game {
     private final static String SAVES_FOLDER = "saves";
+    private final static String SAVES_INDEX = "saves.idx";
+    private final static String SAVES_PACK = "saves.pack";
+    private final static String CONFIG_FILE = "postnuc.properties";
     private final static String DATA_FOLDER = "data";
-    private final static int SAME_SAVES_LIMIT = 256;
-
+    private final static String TIMESTAMP_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    final static int SAME_SAVES_LIMIT = 256;
+    private final static boolean SAVE_FSYNC = true;
+    private final static SaveFormat SAVE_FORMAT = SaveFormat.BINARY;
+    private final static SaveCompression SAVE_COMPRESSION = SaveCompression.NONE;
+    private final static int SAVE_JOURNAL_LIMIT = 16 * 1024;
+    private final static int AUTOSAVE_INTERVAL = 60;
+    final static String SAVE_EXTENSION = ".sav";
+    final static String LEGACY_SAVE_EXTENSION = ".json";
+
+    private Config config;
     private Map<String, String> saveInfo;
     private Character player;
+    private SaveSlotIndex slotIndex;
+    private SaveWriter saveWriter;
+    private SaveCatalog saveCatalog;
+    private SaveVerifier saveVerifier;
+    private CompletableFuture<Set<String>> verification;
+    private AutoSaver autoSaver;
 
     private static Logger log = Logger.getLogger(Game.class.getName());
     private boolean debug = true;
@@ -39,7 +56,136 @@ public class Game {
     /**
      * Preparation actions.
      */
-    private void init() {}
+    private void init() {
+        config = Config.load(new File(Utils.getConfigPath()));
+        boolean fsync = config.getBoolean("save.fsync", SAVE_FSYNC);
+
+        Utils.storage = openStorage(config.getString("save.storage", "files"), fsync);
+
+        slotIndex = new SaveSlotIndex(new File(Utils.getSavesIndexPath()), Utils.storage::getStamp,
+                Utils::getSaveTimes, SAME_SAVES_LIMIT, SAVE_EXTENSION, LEGACY_SAVE_EXTENSION);
+        saveWriter = new SaveWriter(config.getEnum("save.format", SAVE_FORMAT),
+                config.getEnum("save.compression", SAVE_COMPRESSION), Utils.storage,
+                config.getInt("save.journal.limit", SAVE_JOURNAL_LIMIT));
+        saveCatalog = new SaveCatalog((filename, length) -> Utils.storage.read(filename, 0, length));
+        autoSaver = new AutoSaver(new AutoSaver.Target() {
+            @Override
+            public Character getPlayer() {
+                return player;
+            }
+
+            @Override
+            public Map<String, String> getSaveInfo() {
+                return saveInfo;
+            }
+
+            @Override
+            public SaveWriter.Handle save() throws MissingArgumentException {
+                return Game.this.save();
+            }
+        }, config.getInt("autosave.interval", AUTOSAVE_INTERVAL));
+
+        startVerification(config.getString("save.verify", "background"));
+    }
+
+    /**
+     * Starts integrity check of all saves: 'startup' - before the main menu, 'background' - while the player
+     * is in the menu, 'off' - never. Corrupted saves are marked in the load menu.
+     */
+    private void startVerification(String mode) {
+        if (mode.equals("off"))
+            return;
+
+        saveVerifier = new SaveVerifier(Utils.storage, Runtime.getRuntime().availableProcessors());
+        try {
+            if (mode.equals("startup")) {
+                Set<String> corrupted = saveVerifier.verify(Utils.getSaves());
+                if (!corrupted.isEmpty())
+                    System.out.println("Повреждённые сохранения: " + String.join(", ", corrupted));
+            } else {
+                verification = saveVerifier.verifyAsync(Utils.getSaves());
+            }
+        } catch (IOException e) {
+            if (debug) e.printStackTrace();
+            System.out.println("Ошибка: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits for the background check of saves, so the same saves are not checked twice at once.
+     * Then only saves created or changed since that check are checked.
+     * @return filenames of corrupted saves
+     */
+    private Set<String> verify(String[] filenames) {
+        if (verification != null) {
+            try {
+                verification.join();
+            } catch (RuntimeException e) {
+                if (debug) e.printStackTrace();
+            }
+            verification = null;
+        }
+
+        return saveVerifier.verify(filenames);
+    }
+
+    /**
+     * Opens storage of saves: 'files' - saves folder, 'pack' - single-file archive,
+     * 'dedup' - deduplicated blocks in saves folder, 'memory' - RAM only.
+     * If the folder or the archive can't be opened, the simpler storage is used
+     */
+    private StorageBackend openStorage(String type, boolean fsync) {
+        if (type.equals("memory"))
+            return new MemoryStorage();
+        if (type.equals("dedup")) {
+            try {
+                File dir = new File(Utils.getSavesDir());
+                DedupStorage dedup = new DedupStorage(dir, fsync);
+                if (!dedup.isImported()) {
+                    int imported = dedup.importFrom(dir, (d, name) ->
+                            name.endsWith(SAVE_EXTENSION) || name.endsWith(LEGACY_SAVE_EXTENSION));
+                    log.info("Created dedup store, " + imported + " saves imported from " + dir);
+                }
+
+                return dedup;
+            } catch (IOException e) {
+                if (debug) e.printStackTrace();
+                System.out.println("Ошибка: " + e.getMessage());
+                System.out.println("Сохранения будут храниться в папке " + Utils.getSavesDir());
+            }
+        }
+
+        FileStorage files;
+        try {
+            files = new FileStorage(new File(Utils.getSavesDir()), fsync);
+        } catch (DirectoryCreatingException | InvalidPathException e) {
+            if (debug) e.printStackTrace();
+            System.out.println("Ошибка: " + e.getMessage());
+            System.out.println("Сохранения будут храниться только до выхода из игры");
+            return new MemoryStorage();
+        }
+
+        if (!type.equals("pack")) {
+            files.watch();
+            return files;
+        }
+
+        try {
+            SavePack pack = new SavePack(new File(Utils.getSavePackPath()), fsync);
+            if (!pack.isImported()) {
+                int imported = pack.importFrom(files.getDir(), (dir, name) ->
+                        name.endsWith(SAVE_EXTENSION) || name.endsWith(LEGACY_SAVE_EXTENSION));
+                log.info("Created save pack, " + imported + " saves imported from " + files.getDir());
+            }
+
+            return pack;
+        } catch (IOException e) {
+            if (debug) e.printStackTrace();
+            System.out.println("Ошибка: " + e.getMessage());
+            System.out.println("Сохранения будут храниться в папке " + files.getDir());
+            return files;
+        }
+    }
 
     /**
      * Main game logic starts from there. Main menu
@@ -52,7 +198,7 @@ public class Game {
             try {
                 if (Utils.getSaves().length > 0)
                     mainMenu = mainMenu.choice("Загрузить игру", (c) -> loadGame());
-            } catch (DirectoryCreatingException | InvalidPathException e) {
+            } catch (IOException e) {
                 if (debug) e.printStackTrace();
                 System.out.println("Ошибка: " + e.getMessage());
             }
@@ -73,15 +219,25 @@ public class Game {
      * Calls before exit
      */
     private void onExit() {
+        autoSaver.close();
+        saveWriter.close();
+        if (saveVerifier != null)
+            saveVerifier.close();
+        try {
+            Utils.storage.close();
+        } catch (IOException e) {
+            if (debug) e.printStackTrace();
+        }
         System.out.println("Bye.");
-        // TODO: autosave?
     }
 
     /**
-     * Save the game
+     * Save the game. Only snapshot of the state is taken there, file is written by {@link SaveWriter}.<br>
+     * Must be called through {@link AutoSaver#save()}, so autosave knows that the state is saved
+     * @return handle to wait for the save to be written
      * @throws MissingArgumentException Throws when some required data to save is missing
      */
-    private void save() throws MissingArgumentException {
+    private SaveWriter.Handle save() throws MissingArgumentException {
         saveInfo = (saveInfo == null) ? new HashMap<>() : saveInfo;
 
         if (player.getBasic("name") == null) {
@@ -89,68 +245,53 @@ public class Game {
         }
 
 
-        if (saveInfo.get("savename") == null) {
+        final String name;
+        final int slot;
+        final boolean allocated = saveInfo.get("savename") == null;
+        if (allocated) {
             log.info("No savename for this character. Creating new..");
             log.info("Format of savename(examples): Bob_1, Bob_2, Julia_1...");
 
-            int i = 0;
-            while ((new File(Utils.getSavesDir() + '/'
-                    + player.getBasic("name") + "_" + (++i) + ".json").exists())) {
-                if (i == SAME_SAVES_LIMIT) {
-                    String tmp;
-                    System.out.println("Достигнут лимит сохранений с вашим именем(" + player.getBasic("name") + ")!");
-                    do {
-                        System.out.print("Перезаписать последнее сохранение(Y/n)?: ");
-                    } while (!(tmp = sc.nextLine().toLowerCase()).equals("y") && !tmp.equals("n"));
-
-                    if (tmp.equals("n")) {
-                        System.out.println("Возвращение в главное меню...");
-                        return;
-                    }
+            name = player.getBasic("name");
+            slot = slotIndex.allocate(name);
 
-                    System.out.println("Перезаписывание последнего сохранения...");
-                    break;
-                }
-            }
-
-            saveInfo.put("savename", player.getBasic("name") + "_" + i);
+            saveInfo.put("savename", name + "_" + slot);
             log.info("Created savename " + saveInfo.get("savename"));
-        }
+        } else {
+            String savename = saveInfo.get("savename");
+            int idx = savename.lastIndexOf('_');
+            int parsed;
 
-        try(Writer writer = new BufferedWriter(new OutputStreamWriter(
-                new FileOutputStream(Utils.getSavePath(saveInfo.get("savename")))))) {
-            JSONObject save = new JSONObject();
-            JSONObject saveData = new JSONObject();
-            JSONObject charData = new JSONObject();
-            JSONObject charDataBasic = new JSONObject();
-            JSONObject charDataSpecial = new JSONObject();
-            JSONArray charDataInventory = new JSONArray();
-            JSONArray charDataSkills = new JSONArray();
-            JSONArray charDataTraits = new JSONArray();
-            JSONArray charDataEffects = new JSONArray();
-
-            save.put("save", saveData);
-            saveData.put("savetime", Utils.getCurrentTimeStamp());
-            for (Map.Entry<String, String> entry : saveInfo.entrySet()) {
-                saveData.put(entry.getKey(), saveInfo.get(entry.getKey()));
-            }
-            save.put("character", charData);
-            charData.put("basic", charDataBasic);
-            for (Map.Entry<String, String> entry : player.getBasics().entrySet()) {
-                charDataBasic.put(entry.getKey(), entry.getValue());
+            try {
+                parsed = Integer.parseInt(savename.substring(idx + 1));
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                log.warning("Savename " + savename + " has unknown format. Slot index is not updated");
+                parsed = 0;
             }
-            charData.put("special", charDataSpecial);
-            for (Map.Entry<String, Integer> entry : player.getSpecial().entrySet()) {
-                charDataSpecial.put(entry.getKey(), entry.getValue());
+            name = (idx < 0) ? savename : savename.substring(0, idx);
+            slot = parsed;
+        }
+
+        SaveSnapshot snapshot = SaveSnapshot.of(player, saveInfo);
+        SaveWriter.Handle handle = saveWriter.submit(snapshot, snapshot.getSavename() + SAVE_EXTENSION);
+        // Slot is taken only by a written save
+        handle.getFuture().whenComplete((h, e) -> {
+            if (e != null) {
+                if (allocated)
+                    slotIndex.cancel(name, slot);
+                return;
             }
 
-            writer.write(save.toString(4));
-        } catch (IOException e) {
-            if (debug) e.printStackTrace();
-            System.out.println("Ошибка: " + e.getMessage());
-        }
+            Utils.deleteSave(snapshot.getSavename() + LEGACY_SAVE_EXTENSION);
 
-        log.fine("Game saved successfully as " + saveInfo.get("savename"));
+            if (slot > 0)
+                slotIndex.touch(name, slot);
+            slotIndex.store();
+            log.fine("Game saved successfully as " + snapshot.getSavename()
+                    + " in " + handle.getLatencyMillis() + "ms");
+        });
+
+        return handle;
     }
 
     // Main menu methods
@@ -166,7 +307,8 @@ public class Game {
         System.out.println("ваши родители оказались участниками эксперимента \"Убежище\".");
 
         try {
-            player = new Character(setupBasic(), setupSpecial()); //setupSkills();
+            Character created = new Character(setupBasic(), setupSpecial()); //setupSkills();
+            autoSaver.reset(() -> player = created);
         } catch (Character.SPECIAL.IllegalSpecialStatException e) {
             if (debug) e.printStackTrace();
 
@@ -176,7 +318,7 @@ public class Game {
         }
 
         try {
-            save();
+            autoSaver.save();
         } catch (MissingArgumentException e) {
             if (debug) e.printStackTrace();
 
@@ -197,48 +339,61 @@ public class Game {
      * @return 0 if returning back
      */
     private int loadGame() {
-        final String[] saves;
+        final List<SaveCatalog.Entry> saves;
         try {
-            saves = Utils.getSaves();
-        } catch (DirectoryCreatingException | InvalidPathException e) {
+            String[] filenames = Utils.getSaves();
+            Set<String> corrupted = (saveVerifier != null) ? verify(filenames) : Collections.emptySet();
+
+            saves = saveCatalog.load(filenames, corrupted, config.getString("load.sort", "savetime").equals("name")
+                    ? SaveCatalog.BY_NAME : SaveCatalog.BY_SAVETIME);
+        } catch (IOException e) {
             if (debug) e.printStackTrace();
 
             System.out.println("Ошибка: " + e.getMessage());
             return 0;
         }
 
+        List<String> captions = new ArrayList<>();
+        for (SaveCatalog.Entry entry : saves)
+            captions.add(entry.getCaption());
+
         Menu menu = new Menu.Builder("Выберите сохранение")
-                .choices(saves)
+                .choices(captions)
                 .forAny((c) -> {
                     int choice = Integer.parseInt(c);
 
-                    String savePath = Utils.getSavePath(saves[choice-1], "");
-                    JSONObject json = new JSONObject(Utils.readFile(savePath));
-                    JSONObject jCharacter = json.getJSONObject("character");
-                    JSONObject jCharacterSpecial = jCharacter.getJSONObject("special");
-                    JSONObject jCharacterBasic = jCharacter.getJSONObject("basic");
-                    JSONObject jSave = json.getJSONObject("save");
-
-                    Map<String, String> playerBasic = new LinkedHashMap<>();
-                    for (String key : jCharacterBasic.keySet())
-                        playerBasic.put(key, jCharacterBasic.getString(key));
-
-                    Map<String, Integer> playerSpecial = new LinkedHashMap<>();
-                    for (String key : jCharacterSpecial.keySet())
-                        playerSpecial.put(key, jCharacterSpecial.getInt(key));
-
+                    String filename = saves.get(choice-1).getFilename();
+                    Map<String, String> loadedInfo = new LinkedHashMap<>();
+                    Character loaded;
                     try {
-                        player = new Character(playerBasic, playerSpecial);
-                    } catch (Character.SPECIAL.IllegalSpecialStatException e) {
+                        try (InputStream in = Utils.storage.open(filename)) {
+                            loaded = SaveFormat.load(in, loadedInfo);
+                        }
+
+                        // Old saves are migrated from the loaded character, they are upgraded on the next save
+                        if (SaveMigrator.getVersion(loadedInfo) != SaveMigrator.VERSION) {
+                            log.info("Save " + filename + " has version " + SaveMigrator.getVersion(loadedInfo)
+                                    + ". Upgrading to " + SaveMigrator.VERSION);
+
+                            SaveSnapshot snapshot = SaveMigrator.upgrade(
+                                    new SaveSnapshot(new LinkedHashMap<>(loadedInfo), loaded.snapshot()));
+                            loadedInfo.clear();
+                            loadedInfo.putAll(snapshot.getSaveInfo());
+                            loaded = snapshot.toCharacter();
+                        }
+                    } catch (IOException e) {
                         if (debug) e.printStackTrace();
 
                         System.out.println("Ошибка: " + e.getMessage());
-                        player = null;
+                        autoSaver.reset(() -> player = null);
+                        return;
                     }
 
-                    saveInfo = new LinkedHashMap<>();
-                    for (String key : jSave.keySet())
-                        saveInfo.put(key, jSave.getString(key));
+                    Character result = loaded;
+                    autoSaver.reset(() -> {
+                        player = result;
+                        saveInfo = loadedInfo;
+                    });
                 })
                 .backChoice(true)
                 .build();
@@ -289,6 +444,7 @@ public class Game {
             System.out.print("Укажите ваше имя: ");
         }
         characterBasic.put("name", Utils.capitalize(tmp));
+        characterBasic.put("level", "1");
 
         new Menu.Builder("Ваша раса")
                 .choice("Афроамериканец", (c) -> characterBasic.put("race", "american"))
@@ -487,36 +643,75 @@ public class Game {
      * TODO: refactor(somehow later)
      */
     static class Utils {
-        public static String[] getSaves() throws DirectoryCreatingException, InvalidPathException {
-            File saveDir = new File(getSavesDir());
-
-            if (saveDir.exists() && !saveDir.isDirectory())
-                throw new InvalidPathException("Папка для сохранений является файлом!");
-            if (!saveDir.exists() && !saveDir.mkdir())
-                throw new DirectoryCreatingException("Невозможно создать папку сохранений(возможно, дело в правах доступа)");
-
-            return saveDir.list();
+        /**
+         * Storage of all saves, opened in {@link Game#init()}
+         */
+        private static StorageBackend storage;
+        /**
+         * Folder of the game, resolved once
+         */
+        private static String gameDir;
+
+        /**
+         * @return sorted filenames of all saves(for ex. 'Bob_1.sav')
+         */
+        public static String[] getSaves() throws IOException {
+            return Arrays.stream(storage.list())
+                    .filter(name -> name.endsWith(SAVE_EXTENSION) || name.endsWith(LEGACY_SAVE_EXTENSION))
+                    .sorted()
+                    .toArray(String[]::new);
         }
 
-        private static String getGameDir() {
-            try {
-                return Game.class.getProtectionDomain().getCodeSource()
-                        .getLocation().toURI().getPath();
-            } catch (URISyntaxException e) {
-                return null;
+        private static synchronized String getGameDir() {
+            if (gameDir == null) {
+                try {
+                    gameDir = Game.class.getProtectionDomain().getCodeSource()
+                            .getLocation().toURI().getPath();
+                } catch (URISyntaxException e) {
+                    return null;
+                }
             }
+
+            return gameDir;
         }
 
         private static String getSavesDir() {
             return getGameDir() + '/' + SAVES_FOLDER;
         }
 
-        private static String getSavePath(String savename) {
-            return getSavePath(savename, ".json");
+        private static String getSavesIndexPath() {
+            return getGameDir() + '/' + SAVES_INDEX;
         }
 
-        private static String getSavePath(String savename, String extension) {
-            return getSavesDir() + '/' + savename + extension;
+        private static String getSavePackPath() {
+            return getGameDir() + '/' + SAVES_PACK;
+        }
+
+        private static String getConfigPath() {
+            return getGameDir() + '/' + CONFIG_FILE;
+        }
+
+        /**
+         * @param filename Filename of the save(for ex. 'Bob_1.json')
+         */
+        private static void deleteSave(String filename) {
+            try {
+                storage.delete(filename);
+            } catch (IOException e) {
+                log.warning("Unable to delete save " + filename + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * @return filenames of all saves with time of their last modification
+         */
+        private static Map<String, Long> getSaveTimes() {
+            try {
+                return storage.listModified();
+            } catch (IOException e) {
+                log.warning("Unable to list saves: " + e.getMessage());
+                return new HashMap<>();
+            }
         }
 
         public static boolean isAlpha(String string) {
@@ -524,7 +719,25 @@ public class Game {
         }
 
         public static String getCurrentTimeStamp() {
-            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+            return formatTimeStamp(System.currentTimeMillis());
+        }
+
+        public static String formatTimeStamp(long millis) {
+            return new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date(millis));
+        }
+
+        /**
+         * @return ms since epoch, 0 if timestamp is null or has wrong format
+         */
+        public static long parseTimeStamp(String timestamp) {
+            if (timestamp == null)
+                return 0;
+
+            try {
+                return new SimpleDateFormat(TIMESTAMP_FORMAT).parse(timestamp).getTime();
+            } catch (ParseException e) {
+                return 0;
+            }
         }
 
         public static String capitalize(String string) {
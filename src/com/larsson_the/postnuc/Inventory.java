@@ -0,0 +1,522 @@
+package com.larsson_the.postnuc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Items of a character, container or trader. Every slot is a stack of pieces of one item
+ * with the same condition and flags, slots are stored in parallel arrays(id, count, condition, flags).
+ * Non-stackable items take a slot per piece.<br>
+ * Slots of the same item are linked in a chain, head of the chain is found by item id in an open-addressing
+ * hash table, so lookup by id does not depend on size of the inventory. Removed slot is replaced
+ * by the last one, so slot indexes change on removal.<br>
+ * Total weight and value are updated on every change and are read without walking the items.<br>
+ * Slots are saved by item ids, a read-only copy of them is kept until the inventory changes.
+ *
+ * <h4>Usage example:</h4>
+ * <pre>
+ *     Inventory inventory = character.getInventory();
+ *     inventory.add(ItemTable.get().get("stimpak").getId(), 3);
+ *     if (character.canCarry(rifle, 1))
+ *         inventory.add(rifle, 1, 80, 0);
+ * </pre>
+ */
+class Inventory {
+    static final int FLAG_EQUIPPED = 1;
+    static final int FLAG_STOLEN = 2;
+    static final int FLAG_QUEST = 4;
+    /**
+     * Condition of a new item, %
+     */
+    static final int PERFECT = 100;
+
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private ItemTable table;
+
+    private int size;
+    private int[] ids = new int[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private byte[] conditions = new byte[INITIAL_CAPACITY];
+    private int[] flags = new int[INITIAL_CAPACITY];
+    /**
+     * Next slot of the same item, {@link #NONE} at the end of the chain
+     */
+    private int[] next = new int[INITIAL_CAPACITY];
+
+    /**
+     * Hash table from item id to the first slot of the item, linear probing. Empty cell has key {@link #NONE}.
+     */
+    private int[] keys;
+    private int[] heads;
+    private int used;
+
+    private long weight;
+    private long value;
+    /**
+     * Copy for snapshots, null after a change
+     */
+    private List<Slot> copy;
+    /**
+     * Called on every change of the items, may be null
+     */
+    private Runnable onChange;
+
+    Inventory() {
+        allocateIndex(INITIAL_CAPACITY * 2);
+    }
+
+    /**
+     * @param table Items, by default - {@link ItemTable#get()} on the first use
+     */
+    Inventory(ItemTable table) {
+        this();
+        this.table = table;
+    }
+
+    /**
+     * @param onChange Called on every change of the items under the monitor of the inventory,
+     *                 for ex. to count modifications of the owner
+     */
+    Inventory(Runnable onChange) {
+        this();
+        this.onChange = onChange;
+    }
+
+    /**
+     * Adds perfect pieces without flags
+     */
+    public synchronized void add(int id, int count) {
+        add(id, count, PERFECT, 0);
+    }
+
+    /**
+     * Adds pieces to the stack of the same condition and flags or to new slots
+     * @param condition Condition of the pieces, 0..100%
+     * @throws IllegalArgumentException if there is no such item or amount or condition are wrong
+     */
+    public synchronized void add(int id, int count, int condition, int flags) {
+        ItemTable.Item item = item(id);
+        if (count <= 0)
+            throw new IllegalArgumentException("Количество предметов должно быть положительным!");
+        if (condition < 0 || condition > PERFECT)
+            throw new IllegalArgumentException("Состояние предмета должно быть в пределах от 0 до 100!");
+
+        if (item.isStackable()) {
+            for (int s = head(id); s != NONE; s = next[s]) {
+                if (conditions[s] == condition && this.flags[s] == flags) {
+                    subtract(s);
+                    counts[s] += count;
+                    include(s);
+                    changed();
+                    return;
+                }
+            }
+            newSlot(id, count, condition, flags);
+        } else {
+            for (int i = 0; i < count; i++)
+                newSlot(id, 1, condition, flags);
+        }
+        changed();
+    }
+
+    /**
+     * Removes pieces of the item starting from the last added slots
+     * @return false if there are less pieces than required, nothing is removed then
+     */
+    public synchronized boolean remove(int id, int count) {
+        if (count <= 0 || count(id) < count)
+            return false;
+
+        while (count > 0) {
+            int s = head(id);
+            int taken = Math.min(count, counts[s]);
+
+            if (taken == counts[s]) {
+                removeSlot(s);
+            } else {
+                subtract(s);
+                counts[s] -= taken;
+                include(s);
+            }
+            count -= taken;
+        }
+        changed();
+
+        return true;
+    }
+
+    /**
+     * Removes the slot, the last slot takes its index
+     */
+    public synchronized void removeSlot(int slot) {
+        check(slot);
+        subtract(slot);
+        unlink(slot);
+
+        int last = size - 1;
+        if (slot != last) {
+            ids[slot] = ids[last];
+            counts[slot] = counts[last];
+            conditions[slot] = conditions[last];
+            flags[slot] = flags[last];
+            next[slot] = next[last];
+            relink(last, slot);
+        }
+        size--;
+        changed();
+    }
+
+    /**
+     * @return amount of pieces of the item in all slots
+     */
+    public synchronized int count(int id) {
+        int count = 0;
+        for (int s = head(id); s != NONE; s = next[s])
+            count += counts[s];
+
+        return count;
+    }
+
+    /**
+     * @return first slot of the item, -1 if there is no such item
+     */
+    public synchronized int find(int id) {
+        return head(id);
+    }
+
+    /**
+     * @return amount of slots
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int getId(int slot) {
+        check(slot);
+        return ids[slot];
+    }
+
+    public synchronized int getCount(int slot) {
+        check(slot);
+        return counts[slot];
+    }
+
+    public synchronized int getCondition(int slot) {
+        check(slot);
+        return conditions[slot];
+    }
+
+    /**
+     * Changes condition of all pieces of the slot. Slot is not merged with other stacks.
+     */
+    public synchronized void setCondition(int slot, int condition) {
+        check(slot);
+        if (condition < 0 || condition > PERFECT)
+            throw new IllegalArgumentException("Состояние предмета должно быть в пределах от 0 до 100!");
+
+        subtract(slot);
+        conditions[slot] = (byte) condition;
+        include(slot);
+        changed();
+    }
+
+    public synchronized int getFlags(int slot) {
+        check(slot);
+        return flags[slot];
+    }
+
+    /**
+     * Changes flags of all pieces of the slot. Slot is not merged with other stacks.
+     */
+    public synchronized void setFlags(int slot, int flags) {
+        check(slot);
+        this.flags[slot] = flags;
+        changed();
+    }
+
+    /**
+     * @return total weight of all items, lbs
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return total value of all items with their condition, caps
+     */
+    public synchronized long getValue() {
+        return value;
+    }
+
+    /**
+     * @return weight of pieces of the item, lbs
+     */
+    public synchronized long weightOf(int id, int count) {
+        return (long) item(id).getWeight() * count;
+    }
+
+    public synchronized void clear() {
+        size = 0;
+        weight = 0;
+        value = 0;
+        allocateIndex(INITIAL_CAPACITY * 2);
+        changed();
+    }
+
+    /**
+     * @return read-only slots in order of their indexes
+     */
+    public synchronized List<Slot> getSlots() {
+        if (copy == null) {
+            List<Slot> list = new ArrayList<>(size);
+            for (int s = 0; s < size; s++)
+                list.add(new Slot(ids[s], counts[s], conditions[s], flags[s]));
+            copy = Collections.unmodifiableList(list);
+        }
+
+        return copy;
+    }
+
+    /**
+     * Replaces all items with the slots, for ex. from a save
+     * @throws IllegalArgumentException if an item is unknown or amount or condition of a slot are wrong,
+     * the inventory is left empty then
+     */
+    public synchronized void restore(List<Slot> slots) {
+        clear();
+        try {
+            for (Slot slot : slots)
+                add(slot.getId(), slot.getCount(), slot.getCondition(), slot.getFlags());
+        } catch (IllegalArgumentException e) {
+            clear();
+            throw e;
+        }
+    }
+
+    /**
+     * Pieces of one item with the same condition and flags, as they are saved
+     */
+    public static class Slot {
+        private final int id;
+        private final int count;
+        private final int condition;
+        private final int flags;
+
+        Slot(int id, int count, int condition, int flags) {
+            this.id = id;
+            this.count = count;
+            this.condition = condition;
+            this.flags = flags;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getCondition() {
+            return condition;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Slot))
+                return false;
+
+            Slot slot = (Slot) o;
+            return id == slot.id && count == slot.count && condition == slot.condition && flags == slot.flags;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, count, condition, flags);
+        }
+    }
+
+    private void changed() {
+        copy = null;
+        if (onChange != null)
+            onChange.run();
+    }
+
+    private void newSlot(int id, int count, int condition, int flags) {
+        if (size == ids.length) {
+            int capacity = size * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            conditions = Arrays.copyOf(conditions, capacity);
+            this.flags = Arrays.copyOf(this.flags, capacity);
+            next = Arrays.copyOf(next, capacity);
+        }
+
+        int s = size++;
+        ids[s] = id;
+        counts[s] = count;
+        conditions[s] = (byte) condition;
+        this.flags[s] = flags;
+        next[s] = head(id);
+        setHead(id, s);
+        include(s);
+    }
+
+    /**
+     * Removes the slot from the chain of its item
+     */
+    private void unlink(int slot) {
+        int id = ids[slot];
+        int s = head(id);
+        if (s == slot) {
+            setHead(id, next[slot]);
+            return;
+        }
+
+        while (next[s] != slot)
+            s = next[s];
+        next[s] = next[slot];
+    }
+
+    /**
+     * Points the reference to the moved slot to its new index
+     */
+    private void relink(int from, int to) {
+        int id = ids[to];
+        int s = head(id);
+        if (s == from) {
+            setHead(id, to);
+            return;
+        }
+
+        while (next[s] != from)
+            s = next[s];
+        next[s] = to;
+    }
+
+    private void include(int slot) {
+        ItemTable.Item item = item(ids[slot]);
+        weight += (long) item.getWeight() * counts[slot];
+        value += (long) item.getValue() * counts[slot] * conditions[slot] / PERFECT;
+    }
+
+    private void subtract(int slot) {
+        ItemTable.Item item = item(ids[slot]);
+        weight -= (long) item.getWeight() * counts[slot];
+        value -= (long) item.getValue() * counts[slot] * conditions[slot] / PERFECT;
+    }
+
+    private ItemTable.Item item(int id) {
+        if (table == null)
+            table = ItemTable.get();
+
+        ItemTable.Item item = table.get(id);
+        if (item == null)
+            throw new IllegalArgumentException("Неизвестный предмет " + id);
+
+        return item;
+    }
+
+    private void check(int slot) {
+        if (slot < 0 || slot >= size)
+            throw new IndexOutOfBoundsException("Slot " + slot + ", size " + size);
+    }
+
+    private void allocateIndex(int capacity) {
+        keys = new int[capacity];
+        heads = new int[capacity];
+        Arrays.fill(keys, NONE);
+        used = 0;
+    }
+
+    private int cell(int id) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (keys.length - 1);
+    }
+
+    private int head(int id) {
+        for (int i = cell(id); keys[i] != NONE; i = (i + 1) & (keys.length - 1))
+            if (keys[i] == id)
+                return heads[i];
+
+        return NONE;
+    }
+
+    private void setHead(int id, int slot) {
+        int i = cell(id);
+        while (keys[i] != NONE && keys[i] != id)
+            i = (i + 1) & (keys.length - 1);
+
+        if (slot == NONE) {
+            if (keys[i] == id)
+                deleteCell(i);
+            return;
+        }
+
+        if (keys[i] == NONE) {
+            // Table is kept at most half full
+            if ((used + 1) * 2 > keys.length) {
+                rehash(keys.length * 2);
+                setHead(id, slot);
+                return;
+            }
+            keys[i] = id;
+            used++;
+        }
+        heads[i] = slot;
+    }
+
+    /**
+     * Deletes the cell and shifts following cells of the cluster back, so no tombstones are needed
+     */
+    private void deleteCell(int i) {
+        int mask = keys.length - 1;
+        int j = i;
+
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == NONE)
+                break;
+
+            int k = cell(keys[j]);
+            // Entry at j may move to i only if its home cell is not in the cyclic range (i, j]
+            boolean stays = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+            if (!stays) {
+                keys[i] = keys[j];
+                heads[i] = heads[j];
+                i = j;
+            }
+        }
+
+        keys[i] = NONE;
+        used--;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys, oldHeads = heads;
+        allocateIndex(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != NONE) {
+                int c = cell(oldKeys[i]);
+                while (keys[c] != NONE)
+                    c = (c + 1) & (capacity - 1);
+
+                keys[c] = oldKeys[i];
+                heads[c] = oldHeads[i];
+                used++;
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.larsson_the.postnuc;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Items defined in 'data/items.json'. The file is read once, on the first use of {@link #get()}.
+ * Items are identified by ids from the file, which are kept in arrays of {@link Inventory}.
+ */
+class ItemTable {
+    static final String RESOURCE = "data/items.json";
+
+    /**
+     * Items by id, null for unused ids
+     */
+    private final Item[] items;
+    private final Map<String, Item> byKey;
+
+    private ItemTable(List<Item> list) {
+        int maxId = 0;
+        for (Item item : list)
+            maxId = Math.max(maxId, item.id);
+
+        items = new Item[maxId + 1];
+        byKey = new HashMap<>();
+        for (Item item : list) {
+            if (items[item.id] != null)
+                throw new IllegalArgumentException("Повторяющийся id предмета " + item.id);
+
+            items[item.id] = item;
+            byKey.put(item.key, item);
+        }
+    }
+
+    /**
+     * @return items of the game
+     * @throws UncheckedIOException if 'items.json' is missing or broken
+     */
+    public static ItemTable get() {
+        return Holder.TABLE;
+    }
+
+    /**
+     * Reads items from JSON in the format of 'items.json'
+     * @throws IOException if the file is broken
+     */
+    public static ItemTable load(InputStream in) throws IOException {
+        try {
+            JSONObject root = new JSONObject(new JSONTokener(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            JSONArray array = root.getJSONArray("items");
+            List<Item> list = new ArrayList<>();
+
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject item = array.getJSONObject(i);
+                int id = item.getInt("id");
+                if (id < 0)
+                    throw new IllegalArgumentException("Отрицательный id предмета " + id);
+
+                list.add(new Item(id, item.getString("key"), item.getString("name"), item.getInt("weight"),
+                        item.getInt("value"), item.optBoolean("stackable", false)));
+            }
+
+            return new ItemTable(list);
+        } catch (JSONException | IllegalArgumentException e) {
+            throw new IOException("Ошибка в описании предметов: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return item by id, null if there is no such item
+     */
+    public Item get(int id) {
+        return (id >= 0 && id < items.length) ? items[id] : null;
+    }
+
+    /**
+     * @return item by its key(for ex. 'stimpak'), null if there is no such item
+     */
+    public Item get(String key) {
+        return byKey.get(key);
+    }
+
+    public static class Item {
+        private final int id;
+        private final String key;
+        private final String name;
+        private final int weight;
+        private final int value;
+        private final boolean stackable;
+
+        private Item(int id, String key, String name, int weight, int value, boolean stackable) {
+            this.id = id;
+            this.key = key;
+            this.name = name;
+            this.weight = weight;
+            this.value = value;
+            this.stackable = stackable;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return weight of one piece, lbs
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return value of one piece in perfect condition, caps
+         */
+        public int getValue() {
+            return value;
+        }
+
+        /**
+         * @return true if pieces of the same condition and flags are kept in one slot
+         */
+        public boolean isStackable() {
+            return stackable;
+        }
+    }
+
+    /**
+     * Lazy loading of the table on the first use
+     */
+    private static class Holder {
+        private static final ItemTable TABLE;
+
+        static {
+            try (InputStream in = ItemTable.class.getResourceAsStream(RESOURCE)) {
+                if (in == null)
+                    throw new FileNotFoundException("Не найден файл предметов " + RESOURCE);
+
+                TABLE = load(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.larsson_the.postnuc;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Human-readable save format: indented JSON after {@link SaveHeader}.
+ * Legacy saves are the same JSON without header.
+ */
+class JsonSaveCodec implements SaveCodec {
+    @Override
+    public void write(SaveSnapshot snapshot, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.write(snapshot.toJSON().toString(4));
+        writer.flush();
+    }
+
+    @Override
+    public SaveSnapshot read(InputStream in) throws IOException {
+        try {
+            JSONObject json = new JSONObject(new JSONTokener(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            JSONObject jCharacter = json.getJSONObject("character");
+            JSONObject jCharacterSpecial = jCharacter.getJSONObject("special");
+            JSONObject jCharacterBasic = jCharacter.getJSONObject("basic");
+            JSONObject jSave = json.getJSONObject("save");
+
+            Map<String, String> basics = new LinkedHashMap<>();
+            for (String key : jCharacterBasic.keySet())
+                basics.put(key, jCharacterBasic.getString(key));
+
+            Map<String, Integer> special = new LinkedHashMap<>();
+            for (String key : jCharacterSpecial.keySet())
+                special.put(key, jCharacterSpecial.getInt(key));
+
+            List<String> traits = new ArrayList<>();
+            JSONArray jCharacterTraits = jCharacter.optJSONArray("traits");
+            if (jCharacterTraits != null)
+                for (int i = 0; i < jCharacterTraits.length(); i++)
+                    traits.add(jCharacterTraits.getString(i));
+
+            Map<String, Integer> skillPoints = new LinkedHashMap<>();
+            Set<String> taggedSkills = new LinkedHashSet<>();
+            JSONArray jCharacterSkills = jCharacter.optJSONArray("skills");
+            if (jCharacterSkills != null) {
+                for (int i = 0; i < jCharacterSkills.length(); i++) {
+                    JSONObject jSkill = jCharacterSkills.getJSONObject(i);
+                    String key = jSkill.getString("key");
+                    if (jSkill.optInt("points", 0) != 0)
+                        skillPoints.put(key, jSkill.getInt("points"));
+                    if (jSkill.optBoolean("tagged", false))
+                        taggedSkills.add(key);
+                }
+            }
+
+            Map<String, Integer> perks = new LinkedHashMap<>();
+            JSONObject jCharacterPerks = jCharacter.optJSONObject("perks");
+            if (jCharacterPerks != null)
+                for (String name : jCharacterPerks.keySet())
+                    perks.put(name, jCharacterPerks.getInt(name));
+
+            List<Inventory.Slot> inventory = new ArrayList<>();
+            JSONArray jCharacterInventory = jCharacter.optJSONArray("inventory");
+            if (jCharacterInventory != null) {
+                for (int i = 0; i < jCharacterInventory.length(); i++) {
+                    JSONObject jSlot = jCharacterInventory.getJSONObject(i);
+                    inventory.add(new Inventory.Slot(jSlot.getInt("id"), jSlot.getInt("count"),
+                            jSlot.optInt("condition", Inventory.PERFECT), jSlot.optInt("flags", 0)));
+                }
+            }
+
+            Map<String, String> saveInfo = new LinkedHashMap<>();
+            for (String key : jSave.keySet())
+                saveInfo.put(key, jSave.getString(key));
+
+            return new SaveSnapshot(saveInfo, basics, special).withTraits(traits)
+                    .withSkills(skillPoints, taggedSkills).withPerks(perks).withInventory(inventory);
+        } catch (JSONException e) {
+            throw new CorruptedSaveException("Повреждённое сохранение: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Streams the JSON through tokener and sets fields of the character directly:
+     * no String of the whole file, no JSONObject tree, no temporary maps.
+     * Traits, skills, perks and inventory are set after the whole character is read.
+     */
+    @Override
+    public Character load(InputStream in, Map<String, String> saveInfo) throws IOException {
+        JSONTokener t = new JSONTokener(new InputStreamReader(in, StandardCharsets.UTF_8));
+        Character character = new Character();
+        List<String> traits = new ArrayList<>();
+        Map<String, Integer> skillPoints = new LinkedHashMap<>();
+        Set<String> taggedSkills = new LinkedHashSet<>();
+        Map<String, Integer> perks = new LinkedHashMap<>();
+        List<Inventory.Slot> inventory = new ArrayList<>();
+
+        try {
+            readObject(t, (key) -> {
+                switch (key) {
+                    case "save":
+                        readObject(t, (k) -> saveInfo.put(k, nextString(t)));
+                        break;
+                    case "character":
+                        readObject(t, (k) -> {
+                            switch (k) {
+                                case "basic":
+                                    readObject(t, (bk) -> character.setBasic(bk, nextString(t)));
+                                    break;
+                                case "special":
+                                    readObject(t, (sk) -> character.setSpecial(sk, nextInt(t)));
+                                    break;
+                                case "traits":
+                                    readArray(t, () -> traits.add(nextString(t)));
+                                    break;
+                                case "skills":
+                                    readArray(t, () -> readSkill(t, skillPoints, taggedSkills));
+                                    break;
+                                case "perks":
+                                    readObject(t, (pk) -> perks.put(pk, nextInt(t)));
+                                    break;
+                                case "inventory":
+                                    readArray(t, () -> inventory.add(readSlot(t)));
+                                    break;
+                                default:
+                                    skipValue(t);
+                            }
+                        });
+                        break;
+                    default:
+                        skipValue(t);
+                }
+            });
+        } catch (JSONException e) {
+            throw new CorruptedSaveException("Повреждённое сохранение: " + e.getMessage());
+        } catch (Character.SPECIAL.IllegalSpecialStatException e) {
+            throw new CorruptedSaveException(e.getMessage());
+        }
+
+        if (!character.hasFullSpecial())
+            throw new CorruptedSaveException("В сохранении отсутствуют характеристики SPECIAL!");
+
+        try {
+            for (String trait : traits)
+                character.getTraits().add(trait);
+            character.restoreSkills(skillPoints, taggedSkills);
+            character.restorePerks(perks);
+            character.getInventory().restore(inventory);
+        } catch (IllegalArgumentException e) {
+            throw new CorruptedSaveException(e.getMessage());
+        }
+
+        return character;
+    }
+
+    /**
+     * Reads object from the tokener, value of every field must be consumed by the handler
+     */
+    private static void readObject(JSONTokener t, FieldHandler handler)
+            throws Character.SPECIAL.IllegalSpecialStatException {
+        if (t.nextClean() != '{')
+            throw t.syntaxError("A JSONObject text must begin with '{'");
+        if (t.nextClean() == '}')
+            return;
+        t.back();
+
+        while (true) {
+            char c = t.nextClean();
+            if (c != '"' && c != '\'')
+                throw t.syntaxError("Expected a key");
+
+            String key = t.nextString(c);
+            if (t.nextClean() != ':')
+                throw t.syntaxError("Expected a ':' after a key");
+
+            handler.field(key);
+
+            switch (t.nextClean()) {
+                case ',':
+                    if (t.nextClean() == '}')
+                        return;
+                    t.back();
+                    break;
+                case '}':
+                    return;
+                default:
+                    throw t.syntaxError("Expected a ',' or '}'");
+            }
+        }
+    }
+
+    /**
+     * Reads skill object({"key": ..., "points": ..., "tagged": ...}) into the collections
+     */
+    private static void readSkill(JSONTokener t, Map<String, Integer> points, Set<String> tagged)
+            throws Character.SPECIAL.IllegalSpecialStatException {
+        String[] key = new String[1];
+        int[] spent = new int[1];
+        boolean[] tag = new boolean[1];
+
+        readObject(t, (k) -> {
+            switch (k) {
+                case "key":
+                    key[0] = nextString(t);
+                    break;
+                case "points":
+                    spent[0] = nextInt(t);
+                    break;
+                case "tagged":
+                    tag[0] = nextBoolean(t);
+                    break;
+                default:
+                    skipValue(t);
+            }
+        });
+
+        if (key[0] == null)
+            throw t.syntaxError("Skill without key");
+        if (spent[0] != 0)
+            points.put(key[0], spent[0]);
+        if (tag[0])
+            tagged.add(key[0]);
+    }
+
+    /**
+     * Reads slot of the inventory({"id": ..., "count": ..., "condition": ..., "flags": ...})
+     */
+    private static Inventory.Slot readSlot(JSONTokener t) throws Character.SPECIAL.IllegalSpecialStatException {
+        int[] fields = {-1, 0, Inventory.PERFECT, 0};
+
+        readObject(t, (k) -> {
+            switch (k) {
+                case "id":
+                    fields[0] = nextInt(t);
+                    break;
+                case "count":
+                    fields[1] = nextInt(t);
+                    break;
+                case "condition":
+                    fields[2] = nextInt(t);
+                    break;
+                case "flags":
+                    fields[3] = nextInt(t);
+                    break;
+                default:
+                    skipValue(t);
+            }
+        });
+
+        if (fields[0] < 0)
+            throw t.syntaxError("Item without id");
+
+        return new Inventory.Slot(fields[0], fields[1], fields[2], fields[3]);
+    }
+
+    /**
+     * Reads array from the tokener, every element must be consumed by the handler
+     */
+    private static void readArray(JSONTokener t, ElementHandler handler)
+            throws Character.SPECIAL.IllegalSpecialStatException {
+        if (t.nextClean() != '[')
+            throw t.syntaxError("A JSONArray text must begin with '['");
+        if (t.nextClean() == ']')
+            return;
+        t.back();
+
+        while (true) {
+            handler.element();
+
+            char c = t.nextClean();
+            if (c == ']')
+                return;
+            if (c != ',')
+                throw t.syntaxError("Expected a ',' or ']'");
+        }
+    }
+
+    /**
+     * Skips value of any type without building objects for it
+     */
+    private static void skipValue(JSONTokener t) throws Character.SPECIAL.IllegalSpecialStatException {
+        char c = t.nextClean();
+        t.back();
+
+        if (c == '{')
+            readObject(t, (key) -> skipValue(t));
+        else if (c == '[')
+            readArray(t, () -> skipValue(t));
+        else
+            t.nextValue();
+    }
+
+    private static Object nextScalar(JSONTokener t) {
+        char c = t.nextClean();
+        t.back();
+
+        if (c == '{' || c == '[')
+            throw t.syntaxError("Expected a string or number");
+
+        return t.nextValue();
+    }
+
+    private static String nextString(JSONTokener t) {
+        Object value = nextScalar(t);
+        if (!(value instanceof String))
+            throw t.syntaxError("Expected a string, got " + value);
+
+        return (String) value;
+    }
+
+    private static int nextInt(JSONTokener t) {
+        Object value = nextScalar(t);
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+
+        try {
+            return Integer.parseInt(value.toString());
+        } catch (NumberFormatException e) {
+            throw t.syntaxError("Expected a number, got " + value);
+        }
+    }
+
+    private static boolean nextBoolean(JSONTokener t) {
+        Object value = nextScalar(t);
+        if (value instanceof Boolean)
+            return (Boolean) value;
+
+        throw t.syntaxError("Expected a boolean, got " + value);
+    }
+
+    @FunctionalInterface
+    private interface FieldHandler {
+        /**
+         * Called with the key of every field, tokener is positioned at the value
+         */
+        void field(String key) throws Character.SPECIAL.IllegalSpecialStatException;
+    }
+
+    @FunctionalInterface
+    private interface ElementHandler {
+        /**
+         * Called for every element of the array, tokener is positioned at the element
+         */
+        void element() throws Character.SPECIAL.IllegalSpecialStatException;
+    }
+}
@@ -0,0 +1,328 @@
+package com.larsson_the.postnuc;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Fast LZ77-family compressor(LZ4-like sequences) in pure Java.<br>
+ * Compressed block is a list of sequences [token(1)][literal length(255-runs)][literals]
+ * [match offset(2, little endian)][match length(255-runs)]. High half of the token is literal length,
+ * low half is match length minus {@link #MIN_MATCH}, 15 means that length continues in the next bytes.
+ * The last sequence contains only literals.<br>
+ * Streams split data into blocks [raw length(varint)][compressed length(varint)][data],
+ * compressed length 0 means that block is stored raw, raw length 0 ends the stream.
+ */
+class LzCodec {
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 14;
+
+    private LzCodec() {}
+
+    /**
+     * @return max length of compressed data of the length, incompressible data grows by length of literal runs
+     */
+    static int maxCompressedLength(int len) {
+        return len + len / 255 + 16;
+    }
+
+    /**
+     * @return compressed data
+     */
+    public static byte[] compress(byte[] src, int off, int len) {
+        byte[] dst = new byte[maxCompressedLength(len)];
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+
+        int ip = off, end = off + len, anchor = off, op = 0;
+        int limit = end - MIN_MATCH;
+
+        while (ip <= limit) {
+            int seq = readInt(src, ip);
+            int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[h];
+            table[h] = ip;
+
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                ip++;
+                continue;
+            }
+
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < end && src[ref + matchLen] == src[ip + matchLen])
+                matchLen++;
+
+            int literals = ip - anchor;
+            int tokenPos = op++;
+            op = writeLength(dst, op, literals);
+            System.arraycopy(src, anchor, dst, op, literals);
+            op += literals;
+
+            dst[op++] = (byte) (ip - ref);
+            dst[op++] = (byte) ((ip - ref) >>> 8);
+            op = writeLength(dst, op, matchLen - MIN_MATCH);
+
+            dst[tokenPos] = (byte) (Math.min(literals, 15) << 4 | Math.min(matchLen - MIN_MATCH, 15));
+
+            ip += matchLen;
+            anchor = ip;
+        }
+
+        int literals = end - anchor;
+        dst[op++] = (byte) (Math.min(literals, 15) << 4);
+        op = writeLength(dst, op, literals);
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+
+        return Arrays.copyOf(dst, op);
+    }
+
+    /**
+     * @param dst Array for the decompressed data, its length must be equal to the length of raw data
+     * @throws CorruptedSaveException if data is broken
+     */
+    public static void decompress(byte[] src, int off, int len, byte[] dst) throws CorruptedSaveException {
+        int ip = off, end = off + len, op = 0;
+
+        try {
+            while (ip < end) {
+                int token = src[ip++] & 0xFF;
+
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+
+                if (ip >= end)
+                    break;
+
+                int offset = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+                int matchLen = token & 15;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+
+                int ref = op - offset;
+                if (offset == 0 || ref < 0)
+                    throw new CorruptedSaveException("Повреждённые сжатые данные!");
+
+                for (int i = 0; i < matchLen; i++)
+                    dst[op++] = dst[ref++];
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new CorruptedSaveException("Повреждённые сжатые данные!");
+        }
+
+        if (op != dst.length)
+            throw new CorruptedSaveException("Повреждённые сжатые данные!");
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Writes the part of length which does not fit into 4 bits of the token
+     */
+    private static int writeLength(byte[] dst, int op, int length) {
+        if (length < 15)
+            return op;
+
+        length -= 15;
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+
+        return op;
+    }
+
+    /**
+     * Compressing stream. {@link #close()} writes the last block and the end of the stream,
+     * underlying stream is closed too.
+     */
+    public static class Output extends FilterOutputStream {
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private int size = 0;
+        private boolean finished = false;
+
+        Output(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == block.length)
+                writeBlock();
+            block[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == block.length)
+                    writeBlock();
+
+                int n = Math.min(len, block.length - size);
+                System.arraycopy(b, off, block, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Writes the last block and the end of the stream without closing underlying stream
+         */
+        public void finish() throws IOException {
+            if (finished)
+                return;
+
+            writeBlock();
+            BinarySaveCodec.writeVarint(out, 0);
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            super.close();
+        }
+
+        private void writeBlock() throws IOException {
+            if (size == 0)
+                return;
+
+            byte[] compressed = compress(block, 0, size);
+            BinarySaveCodec.writeVarint(out, size);
+            if (compressed.length < size) {
+                BinarySaveCodec.writeVarint(out, compressed.length);
+                out.write(compressed);
+            } else {
+                BinarySaveCodec.writeVarint(out, 0);
+                out.write(block, 0, size);
+            }
+            size = 0;
+        }
+    }
+
+    /**
+     * Decompressing stream
+     */
+    public static class Input extends FilterInputStream {
+        private byte[] block = new byte[0];
+        private int pos = 0;
+        private boolean eof = false;
+
+        Input(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+
+            return block[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+
+            int n = Math.min(len, block.length - pos);
+            System.arraycopy(block, pos, b, off, n);
+            pos += n;
+
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && fill()) {
+                int step = (int) Math.min(n - skipped, block.length - pos);
+                pos += step;
+                skipped += step;
+            }
+
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return block.length - pos;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * @return false if the end of the stream is reached
+         */
+        private boolean fill() throws IOException {
+            if (pos < block.length)
+                return true;
+            if (eof)
+                return false;
+
+            int rawLength;
+            try {
+                rawLength = BinarySaveCodec.readVarint(in);
+            } catch (EOFException e) {
+                throw new CorruptedSaveException("Сжатые данные обрезаны!");
+            }
+            if (rawLength == 0) {
+                eof = true;
+                return false;
+            }
+            if (rawLength < 0 || rawLength > BLOCK_SIZE)
+                throw new CorruptedSaveException("Повреждённые сжатые данные!");
+
+            int compressedLength = BinarySaveCodec.readVarint(in);
+            if (compressedLength < 0 || compressedLength > maxCompressedLength(rawLength))
+                throw new CorruptedSaveException("Повреждённые сжатые данные!");
+            block = new byte[rawLength];
+            pos = 0;
+
+            if (compressedLength == 0) {
+                readFully(block);
+            } else {
+                byte[] compressed = new byte[compressedLength];
+                readFully(compressed);
+                decompress(compressed, 0, compressedLength, block);
+            }
+
+            return true;
+        }
+
+        private void readFully(byte[] b) throws IOException {
+            int off = 0;
+            while (off < b.length) {
+                int n = in.read(b, off, b.length - off);
+                if (n < 0)
+                    throw new CorruptedSaveException("Сжатые данные обрезаны!");
+                off += n;
+            }
+        }
+    }
+}
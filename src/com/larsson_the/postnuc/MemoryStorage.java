@@ -0,0 +1,124 @@
+package com.larsson_the.postnuc;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Saves stored only in RAM. Used to measure save/load throughput without disk noise
+ * and to run large batch jobs. Everything is lost on exit.
+ */
+class MemoryStorage implements StorageBackend {
+    private final Map<String, Slot> slots = new HashMap<>();
+    private long stamp = 0;
+
+    @Override
+    public synchronized String[] list() {
+        return slots.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public synchronized Map<String, Long> listModified() {
+        Map<String, Long> times = new HashMap<>();
+        for (Map.Entry<String, Slot> e : slots.entrySet())
+            times.put(e.getKey(), e.getValue().modified);
+
+        return times;
+    }
+
+    @Override
+    public synchronized long getStamp() {
+        return stamp;
+    }
+
+    @Override
+    public synchronized long length(String name) {
+        Slot slot = slots.get(name);
+        return (slot == null) ? -1 : slot.length;
+    }
+
+    @Override
+    public synchronized InputStream open(String name) throws IOException {
+        Slot slot = get(name);
+        return new ByteArrayInputStream(Arrays.copyOf(slot.data, slot.length));
+    }
+
+    @Override
+    public synchronized byte[] read(String name, int position, int length) throws IOException {
+        Slot slot = get(name);
+        int start = Math.min(position, slot.length);
+        int end = Math.max(start, Math.min(position + length, slot.length));
+
+        return Arrays.copyOfRange(slot.data, start, end);
+    }
+
+    @Override
+    public synchronized void put(String name, byte[] data) {
+        if (!slots.containsKey(name))
+            stamp++;
+
+        slots.put(name, new Slot(data.clone()));
+    }
+
+    @Override
+    public synchronized void append(String name, byte[] data) {
+        Slot slot = slots.get(name);
+        if (slot == null) {
+            put(name, data);
+            return;
+        }
+
+        if (slot.length + data.length > slot.data.length)
+            slot.data = Arrays.copyOf(slot.data, Math.max(slot.length + data.length, slot.data.length * 2));
+        System.arraycopy(data, 0, slot.data, slot.length, data.length);
+        slot.length += data.length;
+        slot.modified = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void write(String name, int position, byte[] data) throws IOException {
+        Slot slot = get(name);
+        if (position + data.length > slot.length)
+            throw new IOException("Запись за пределами сохранения " + name);
+
+        System.arraycopy(data, 0, slot.data, position, data.length);
+        slot.modified = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized boolean delete(String name) {
+        if (slots.remove(name) == null)
+            return false;
+
+        stamp++;
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private Slot get(String name) throws FileNotFoundException {
+        Slot slot = slots.get(name);
+        if (slot == null)
+            throw new FileNotFoundException("Сохранение " + name + " не найдено!");
+
+        return slot;
+    }
+
+    private static class Slot {
+        private byte[] data;
+        private int length;
+        private long modified;
+
+        private Slot(byte[] data) {
+            this.data = data;
+            this.length = data.length;
+            this.modified = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.larsson_the.postnuc;
+
+import java.io.IOException;
+
+/**
+ * Lightweight NPC, all common data is in its {@link NpcTable.Template}. Instance keeps only what differs:
+ * changes of SPECIAL packed in one long(a signed byte per stat), level, damage and flags.
+ * Own inventory is created from the template inventory on the first access to it.<br>
+ * Derived stats are read from the template while SPECIAL and level are not changed, after a change they are
+ * computed once and cached in the instance until the next change.
+ * Full {@link Character} is built by {@link #toCharacter()} only when it is really needed, for ex. for dialog.
+ *
+ * <h4>Usage example:</h4>
+ * <pre>
+ *     NpcTable.Template raider = NpcTable.get().get("raider");
+ *     List&lt;Npc&gt; camp = new ArrayList&lt;&gt;();
+ *     for (int i = 0; i &lt; 1000; i++)
+ *         camp.add(new Npc(raider));
+ * </pre>
+ */
+class Npc {
+    static final int FLAG_DEAD = 1;
+    static final int FLAG_HOSTILE = 2;
+
+    private final NpcTable.Template template;
+    /**
+     * Changes of SPECIAL stats, byte {@link Special#ordinal()} is the change of the stat
+     */
+    private long special;
+    private short level;
+    private short damage;
+    private byte flags;
+    private Inventory inventory;
+    /**
+     * Derived stats by {@link DerivedStat#ordinal()}, null if SPECIAL or level was changed since they were computed
+     */
+    private int[] derived;
+
+    Npc(NpcTable.Template template) {
+        this.template = template;
+        this.level = (short) template.getLevel();
+    }
+
+    public NpcTable.Template getTemplate() {
+        return template;
+    }
+
+    public String getName() {
+        return template.getName();
+    }
+
+    public synchronized int getSpecial(Special s) {
+        return template.getSpecial(s) + (byte) (special >>> (s.ordinal() * 8));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value is not within 1..10
+     */
+    public synchronized void setSpecial(Special s, int value) {
+        if (value < 1 || value > 10)
+            throw new IllegalArgumentException("Характеристика должна быть в пределах от 1 до 10!");
+
+        int shift = s.ordinal() * 8;
+        long delta = (value - template.getSpecial(s)) & 0xFF;
+        special = (special & ~(0xFFL << shift)) | (delta << shift);
+        derived = null;
+    }
+
+    public synchronized int getLevel() {
+        return level;
+    }
+
+    public synchronized void setLevel(int level) {
+        if (level < 1 || level > Short.MAX_VALUE)
+            throw new IllegalArgumentException("Неверный уровень " + level);
+
+        this.level = (short) level;
+        derived = null;
+    }
+
+    /**
+     * @return derived stat, without building a character while SPECIAL and level are the template ones.
+     * After their change a character is built once and all derived stats are cached.
+     */
+    public synchronized int getDerived(DerivedStat stat) {
+        if (special == 0 && level == template.getLevel())
+            return template.getDerived(stat);
+
+        if (derived == null) {
+            Character character;
+            try {
+                character = toCharacter();
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+
+            int[] values = new int[DerivedStat.VALUES.length];
+            for (DerivedStat s : DerivedStat.VALUES)
+                values[s.ordinal()] = character.getDerived(s);
+            derived = values;
+        }
+
+        return derived[stat.ordinal()];
+    }
+
+    public int getHitPoints() {
+        int max = getDerived(DerivedStat.HIT_POINTS);
+        synchronized (this) {
+            return Math.max(0, max - damage);
+        }
+    }
+
+    /**
+     * @return true if the NPC died from the damage
+     */
+    public boolean hit(int points) {
+        int max = getDerived(DerivedStat.HIT_POINTS);
+        synchronized (this) {
+            damage = (short) Math.min(max, damage + Math.max(0, points));
+            if (damage >= max)
+                flags |= FLAG_DEAD;
+
+            return isDead();
+        }
+    }
+
+    public synchronized void heal(int points) {
+        if (!isDead())
+            damage = (short) Math.max(0, damage - Math.max(0, points));
+    }
+
+    public synchronized boolean isDead() {
+        return (flags & FLAG_DEAD) != 0;
+    }
+
+    public synchronized boolean isHostile() {
+        return (flags & FLAG_HOSTILE) != 0;
+    }
+
+    public synchronized void setHostile(boolean hostile) {
+        flags = (byte) (hostile ? flags | FLAG_HOSTILE : flags & ~FLAG_HOSTILE);
+    }
+
+    /**
+     * @return amount of the item, the template inventory is not copied for it
+     */
+    public synchronized int count(int itemId) {
+        return (inventory == null) ? template.count(itemId) : inventory.count(itemId);
+    }
+
+    /**
+     * @return own inventory, created from the template inventory on the first call
+     */
+    public synchronized Inventory getInventory() {
+        if (inventory == null)
+            inventory = template.newInventory();
+
+        return inventory;
+    }
+
+    /**
+     * @return new full character with the state of the NPC, without inventory(see {@link #getInventory()})
+     */
+    public Character toCharacter() throws IOException {
+        Character character = template.newCharacter();
+
+        synchronized (this) {
+            try {
+                character.setBasic("level", String.valueOf(level));
+                // Changes of the NPC go to base stats, the template traits still change them
+                for (Special s : Special.VALUES) {
+                    int delta = getSpecial(s) - template.getSpecial(s);
+                    if (delta != 0)
+                        character.setSpecial(s, Math.max(1, Math.min(10, character.getBaseSpecial(s) + delta)));
+                }
+            } catch (Character.SPECIAL.IllegalSpecialStatException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        return character;
+    }
+}
@@ -0,0 +1,232 @@
+package com.larsson_the.postnuc;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Templates of NPCs defined in 'data/npcs.json'. The file is read once, on the first use of {@link #get()}.<br>
+ * Template keeps everything NPCs of the kind have in common: basic stats, SPECIAL with default traits applied,
+ * derived stats and default inventory. {@link Npc}s only refer to their template.
+ */
+class NpcTable {
+    static final String RESOURCE = "data/npcs.json";
+
+    private final Map<String, Template> templates;
+
+    private NpcTable(Map<String, Template> templates) {
+        this.templates = templates;
+    }
+
+    /**
+     * @return templates of the game
+     * @throws UncheckedIOException if 'npcs.json' is missing or broken
+     */
+    public static NpcTable get() {
+        return Holder.TABLE;
+    }
+
+    /**
+     * Reads templates from JSON in the format of 'npcs.json'
+     * @throws IOException if the file is broken or has unknown stat, trait or item
+     */
+    public static NpcTable load(InputStream in, ItemTable items) throws IOException {
+        Map<String, Template> templates = new LinkedHashMap<>();
+
+        try {
+            JSONObject root = new JSONObject(new JSONTokener(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            JSONArray array = root.getJSONArray("templates");
+
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject json = array.getJSONObject(i);
+                String id = json.getString("id");
+
+                Map<String, String> basics = new LinkedHashMap<>();
+                JSONObject basic = json.optJSONObject("basic");
+                if (basic != null)
+                    for (String key : basic.keySet())
+                        basics.put(key, basic.getString(key));
+                basics.put("name", json.getString("name"));
+                basics.put("race", json.getString("race"));
+                basics.put("level", String.valueOf(json.getInt("level")));
+
+                Map<String, Integer> special = new LinkedHashMap<>();
+                JSONObject specialJson = json.getJSONObject("special");
+                for (String key : specialJson.keySet())
+                    special.put(key, specialJson.getInt(key));
+
+                List<String> traits = new ArrayList<>();
+                JSONArray traitsJson = json.optJSONArray("traits");
+                if (traitsJson != null)
+                    for (int j = 0; j < traitsJson.length(); j++)
+                        traits.add(traitsJson.getString(j));
+
+                JSONObject inventory = json.optJSONObject("inventory");
+                int size = (inventory == null) ? 0 : inventory.length();
+                int[] itemIds = new int[size];
+                int[] itemCounts = new int[size];
+                if (inventory != null) {
+                    int j = 0;
+                    for (String key : new TreeSet<>(inventory.keySet())) {
+                        ItemTable.Item item = items.get(key);
+                        if (item == null)
+                            throw new IOException("Неизвестный предмет " + key + " у шаблона " + id);
+
+                        itemIds[j] = item.getId();
+                        itemCounts[j++] = inventory.getInt(key);
+                    }
+                }
+
+                templates.put(id, new Template(id, basics, special, traits, itemIds, itemCounts));
+            }
+        } catch (JSONException | IllegalArgumentException | IllegalStateException e) {
+            throw new IOException("Ошибка в описании NPC: " + e.getMessage(), e);
+        }
+
+        return new NpcTable(templates);
+    }
+
+    /**
+     * @return template by its id(for ex. 'raider'), null if there is no such template
+     */
+    public Template get(String id) {
+        return templates.get(id);
+    }
+
+    public Collection<Template> getTemplates() {
+        return templates.values();
+    }
+
+    /**
+     * Immutable data shared by all NPCs of the kind
+     */
+    public static class Template {
+        private final String id;
+        private final Map<String, String> basics;
+        private final Map<String, Integer> baseSpecial;
+        private final List<String> traits;
+        private final int level;
+        /**
+         * SPECIAL with traits applied, by {@link Special#ordinal()}
+         */
+        private final byte[] special = new byte[Special.VALUES.length];
+        /**
+         * Derived stats at the template level and SPECIAL, by {@link DerivedStat#ordinal()}
+         */
+        private final int[] derived = new int[DerivedStat.VALUES.length];
+        private final int[] itemIds;
+        private final int[] itemCounts;
+
+        private Template(String id, Map<String, String> basics, Map<String, Integer> special, List<String> traits,
+                         int[] itemIds, int[] itemCounts) throws IOException {
+            this.id = id;
+            this.basics = Collections.unmodifiableMap(basics);
+            this.baseSpecial = Collections.unmodifiableMap(special);
+            this.traits = Collections.unmodifiableList(traits);
+            this.level = Integer.parseInt(basics.get("level"));
+            this.itemIds = itemIds;
+            this.itemCounts = itemCounts;
+
+            Character character = newCharacter();
+            for (Special s : Special.VALUES)
+                this.special[s.ordinal()] = (byte) character.getSpecial(s);
+            for (DerivedStat stat : DerivedStat.VALUES)
+                derived[stat.ordinal()] = character.getDerived(stat);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return basics.get("name");
+        }
+
+        public String getRace() {
+            return basics.get("race");
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public Map<String, String> getBasics() {
+            return basics;
+        }
+
+        public List<String> getTraits() {
+            return traits;
+        }
+
+        /**
+         * @return SPECIAL stat with default traits applied
+         */
+        public int getSpecial(Special s) {
+            return special[s.ordinal()];
+        }
+
+        public int getDerived(DerivedStat stat) {
+            return derived[stat.ordinal()];
+        }
+
+        /**
+         * @return amount of the item in default inventory
+         */
+        public int count(int itemId) {
+            for (int i = 0; i < itemIds.length; i++)
+                if (itemIds[i] == itemId)
+                    return itemCounts[i];
+
+            return 0;
+        }
+
+        /**
+         * @return new inventory with default items
+         */
+        public Inventory newInventory() {
+            Inventory inventory = new Inventory();
+            for (int i = 0; i < itemIds.length; i++)
+                inventory.add(itemIds[i], itemCounts[i]);
+
+            return inventory;
+        }
+
+        /**
+         * @return new full character of the template with default traits, without inventory
+         */
+        public Character newCharacter() throws IOException {
+            try {
+                Character character = new Character(new LinkedHashMap<>(basics), baseSpecial);
+                for (String trait : traits)
+                    character.getTraits().add(trait);
+
+                return character;
+            } catch (Character.SPECIAL.IllegalSpecialStatException | NullPointerException e) {
+                throw new IOException("Неверные характеристики шаблона " + id + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Lazy loading of the table on the first use
+     */
+    private static class Holder {
+        private static final NpcTable TABLE;
+
+        static {
+            try (InputStream in = NpcTable.class.getResourceAsStream(RESOURCE)) {
+                if (in == null)
+                    throw new FileNotFoundException("Не найден файл NPC " + RESOURCE);
+
+                TABLE = load(in, ItemTable.get());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
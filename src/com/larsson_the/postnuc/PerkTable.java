@@ -0,0 +1,306 @@
+package com.larsson_the.postnuc;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Perks defined in 'data/perks.json'. The file is read once, on the first use of {@link #get()}.<br>
+ * Requirements of all perks are compiled into tables of bit sets(bit index is id of the perk):
+ * perks allowed at every level, perks allowed by every value of every SPECIAL stat,
+ * perks allowed by every threshold of every required skill and perks excluded by every trait.
+ * So {@link #eligible(Character, long[])} only looks up a few sets and ANDs them word by word,
+ * whatever amount of perks and requirements there is.
+ */
+class PerkTable {
+    static final String RESOURCE = "data/perks.json";
+
+    private final Perk[] perks;
+    private final Map<String, Perk> byName;
+    /**
+     * Amount of longs in a set of perks
+     */
+    private final int words;
+    /**
+     * Perks allowed at level, by level. The last set is for all higher levels.
+     */
+    private final long[][] byLevel;
+    /**
+     * Perks allowed by value of SPECIAL stat, by {@link Special#ordinal()} and value
+     */
+    private final long[][][] bySpecial;
+    private final SkillThresholds[] bySkill;
+    /**
+     * Perks excluded by trait, by {@link TraitTable.Trait#getId()}
+     */
+    private final long[][] byTrait;
+
+    private PerkTable(List<Perk> perks, TraitTable traits) {
+        this.perks = perks.toArray(new Perk[0]);
+        this.byName = new HashMap<>();
+        this.words = Math.max(1, (this.perks.length + Long.SIZE - 1) / Long.SIZE);
+
+        int maxLevel = 1;
+        for (Perk perk : this.perks) {
+            byName.put(perk.name, perk);
+            maxLevel = Math.max(maxLevel, perk.level);
+        }
+
+        byLevel = new long[maxLevel + 1][words];
+        for (int level = 0; level <= maxLevel; level++)
+            for (Perk perk : this.perks)
+                if (perk.level <= level)
+                    set(byLevel[level], perk.id);
+
+        bySpecial = new long[Special.VALUES.length][11][words];
+        for (Special s : Special.VALUES)
+            for (int value = 0; value <= 10; value++)
+                for (Perk perk : this.perks)
+                    if (perk.special[s.ordinal()] <= value)
+                        set(bySpecial[s.ordinal()][value], perk.id);
+
+        Map<Integer, TreeSet<Integer>> thresholds = new TreeMap<>();
+        for (Perk perk : this.perks)
+            for (Map.Entry<Integer, Integer> e : perk.skills.entrySet())
+                thresholds.computeIfAbsent(e.getKey(), k -> new TreeSet<>()).add(e.getValue());
+
+        bySkill = new SkillThresholds[thresholds.size()];
+        int i = 0;
+        for (Map.Entry<Integer, TreeSet<Integer>> e : thresholds.entrySet())
+            bySkill[i++] = new SkillThresholds(e.getKey(), e.getValue());
+
+        byTrait = new long[Long.SIZE][words];
+        for (Perk perk : this.perks) {
+            for (String name : perk.excludedTraits) {
+                TraitTable.Trait trait = traits.get(name);
+                if (trait == null)
+                    throw new IllegalArgumentException("Неизвестная черта " + name + " у перка " + perk.name);
+
+                set(byTrait[trait.getId()], perk.id);
+            }
+        }
+    }
+
+    /**
+     * @return perks of the game
+     * @throws UncheckedIOException if 'perks.json' is missing or broken
+     */
+    public static PerkTable get() {
+        return Holder.TABLE;
+    }
+
+    /**
+     * Reads perks from JSON in the format of 'perks.json'
+     * @throws IOException if the file is broken or has unknown stat, skill or trait
+     */
+    public static PerkTable load(InputStream in, SkillTable skills, TraitTable traits) throws IOException {
+        try {
+            JSONObject root = new JSONObject(new JSONTokener(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            JSONArray array = root.getJSONArray("perks");
+            List<Perk> perks = new ArrayList<>();
+
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject perk = array.getJSONObject(i);
+                String name = perk.getString("name");
+
+                int[] special = new int[Special.VALUES.length];
+                JSONObject stats = perk.optJSONObject("special");
+                if (stats != null) {
+                    for (String key : stats.keySet()) {
+                        Special s = Special.of(key);
+                        if (s == null)
+                            throw new IOException("Неизвестная характеристика " + key + " у перка " + name);
+                        special[s.ordinal()] = stats.getInt(key);
+                    }
+                }
+
+                Map<Integer, Integer> required = new TreeMap<>();
+                JSONObject skillsJson = perk.optJSONObject("skills");
+                if (skillsJson != null) {
+                    for (String key : skillsJson.keySet()) {
+                        SkillTable.Skill skill = skills.get(key);
+                        if (skill == null)
+                            throw new IOException("Неизвестный навык " + key + " у перка " + name);
+                        required.put(skill.getId(), skillsJson.getInt(key));
+                    }
+                }
+
+                List<String> excluded = new ArrayList<>();
+                JSONArray excludedJson = perk.optJSONArray("exclude_traits");
+                if (excludedJson != null)
+                    for (int j = 0; j < excludedJson.length(); j++)
+                        excluded.add(excludedJson.getString(j));
+
+                perks.add(new Perk(i, name, perk.optString("desc", ""), perk.getInt("level"),
+                        perk.optInt("ranks", 1), special, required, excluded));
+            }
+
+            return new PerkTable(perks, traits);
+        } catch (JSONException | IllegalArgumentException e) {
+            throw new IOException("Ошибка в описании перков: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return new empty set of perks
+     */
+    public long[] newSet() {
+        return new long[words];
+    }
+
+    /**
+     * Finds perks whose requirements the character meets. Ranks already taken are not checked here.
+     * @param result Set of perks from {@link #newSet()}, filled with ids of eligible perks
+     */
+    public void eligible(Character character, long[] result) {
+        int level = Math.max(0, Math.min(character.getLevel(), byLevel.length - 1));
+        System.arraycopy(byLevel[level], 0, result, 0, words);
+
+        for (Special s : Special.VALUES)
+            and(result, bySpecial[s.ordinal()][Math.max(0, Math.min(10, character.getSpecial(s)))]);
+
+        Character.Skills skills = character.getSkills();
+        for (SkillThresholds t : bySkill)
+            and(result, t.allowed(skills.get(t.skill)));
+
+        for (long traits = character.getTraits().getMask(); traits != 0; traits &= traits - 1)
+            andNot(result, byTrait[Long.numberOfTrailingZeros(traits)]);
+    }
+
+    public int size() {
+        return perks.length;
+    }
+
+    public Perk get(int id) {
+        return perks[id];
+    }
+
+    /**
+     * @return perk by its name, null if there is no such perk
+     */
+    public Perk get(String name) {
+        return byName.get(name);
+    }
+
+    static boolean contains(long[] set, int id) {
+        return (set[id >>> 6] & (1L << id)) != 0;
+    }
+
+    static void set(long[] set, int id) {
+        set[id >>> 6] |= 1L << id;
+    }
+
+    static void clear(long[] set, int id) {
+        set[id >>> 6] &= ~(1L << id);
+    }
+
+    static void and(long[] set, long[] other) {
+        for (int i = 0; i < set.length; i++)
+            set[i] &= other[i];
+    }
+
+    static void andNot(long[] set, long[] other) {
+        for (int i = 0; i < set.length; i++)
+            set[i] &= ~other[i];
+    }
+
+    public static class Perk {
+        private final int id;
+        private final String name;
+        private final String desc;
+        private final int level;
+        private final int ranks;
+        private final int[] special;
+        private final Map<Integer, Integer> skills;
+        private final List<String> excludedTraits;
+
+        private Perk(int id, String name, String desc, int level, int ranks, int[] special,
+                     Map<Integer, Integer> skills, List<String> excludedTraits) {
+            this.id = id;
+            this.name = name;
+            this.desc = desc;
+            this.level = level;
+            this.ranks = ranks;
+            this.special = special;
+            this.skills = skills;
+            this.excludedTraits = excludedTraits;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDesc() {
+            return desc;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * @return how many times the perk can be taken
+         */
+        public int getRanks() {
+            return ranks;
+        }
+    }
+
+    /**
+     * Sets of perks allowed by a value of the skill. Set k is for values reaching k lowest thresholds.
+     */
+    private class SkillThresholds {
+        private final int skill;
+        private final int[] thresholds;
+        private final long[][] allowed;
+
+        private SkillThresholds(int skill, SortedSet<Integer> values) {
+            this.skill = skill;
+            this.thresholds = new int[values.size()];
+            int i = 0;
+            for (int v : values)
+                thresholds[i++] = v;
+
+            allowed = new long[thresholds.length + 1][words];
+            for (int k = 0; k <= thresholds.length; k++)
+                for (Perk perk : perks)
+                    if (perk.skills.getOrDefault(skill, 0) <= ((k == 0) ? 0 : thresholds[k - 1]))
+                        set(allowed[k], perk.id);
+        }
+
+        private long[] allowed(int value) {
+            int k = 0;
+            while (k < thresholds.length && thresholds[k] <= value)
+                k++;
+
+            return allowed[k];
+        }
+    }
+
+    /**
+     * Lazy loading of the table on the first use
+     */
+    private static class Holder {
+        private static final PerkTable TABLE;
+
+        static {
+            try (InputStream in = PerkTable.class.getResourceAsStream(RESOURCE)) {
+                if (in == null)
+                    throw new FileNotFoundException("Не найден файл перков " + RESOURCE);
+
+                TABLE = load(in, SkillTable.get(), TraitTable.get());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.larsson_the.postnuc;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares {@link SaveFormat}s and {@link SaveCompression}s on a realistic save and on a synthetic large one.
+ * For every pair reports size of the save, compression ratio and average save/load latency.
+ * Then measures throughput of {@link SaveWriter} and loading on {@link MemoryStorage} and {@link FileStorage},
+ * and disk usage of many slots of the same character in {@link FileStorage} and {@link DedupStorage}.
+ *
+ * <h4>Usage example:</h4>
+ * <pre>
+ *     java com.larsson_the.postnuc.SaveBenchmark
+ *     java com.larsson_the.postnuc.SaveBenchmark 200 20000
+ * </pre>
+ * Arguments are amount of measured iterations(default 100) and amount of entries in the large save(default 10000).
+ */
+class SaveBenchmark {
+    private static final int WARMUP = 20;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        int entries = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+
+        run("realistic", realistic(), iterations);
+        run("large(" + entries + ")", large(entries), Math.max(1, iterations / 10));
+
+        File dir = Files.createTempDirectory("postnuc-bench").toFile();
+        try (StorageBackend memory = new MemoryStorage(); StorageBackend files = new FileStorage(dir, false)) {
+            System.out.println("throughput:");
+            System.out.printf("  %-8s %10s %10s%n", "storage", "saves/s", "loads/s");
+            throughput("memory", memory, realistic(), iterations * 10);
+            throughput("files", files, realistic(), iterations * 10);
+        } finally {
+            delete(dir);
+        }
+
+        File filesDir = Files.createTempDirectory("postnuc-bench").toFile();
+        File dedupDir = Files.createTempDirectory("postnuc-bench").toFile();
+        try (FileStorage files = new FileStorage(filesDir, false);
+             DedupStorage dedup = new DedupStorage(dedupDir, false)) {
+            SaveSnapshot snapshot = large(entries);
+            int slots = Game.SAME_SAVES_LIMIT;
+
+            long written = slots(files, snapshot, slots);
+            slots(dedup, snapshot, slots);
+
+            long used = 0;
+            for (File file : filesDir.listFiles())
+                used += file.length();
+
+            System.out.println();
+            System.out.println(slots + " slots of the same character:");
+            System.out.printf("  %-8s %12s %12s%n", "storage", "disk bytes", "written");
+            System.out.printf("  %-8s %12d %12d%n", "files", used, written);
+            System.out.printf("  %-8s %12d %12d%n", "dedup", dedup.getDiskBytes(), dedup.getWrittenBytes());
+        } finally {
+            delete(filesDir);
+            delete(dedupDir);
+        }
+    }
+
+    /**
+     * Writes slots of the same character, every slot has a bit more experience and different world state entry
+     * @return amount of written bytes
+     */
+    private static long slots(StorageBackend storage, SaveSnapshot snapshot, int slots) throws Exception {
+        SaveWriter writer = new SaveWriter(SaveFormat.BINARY, SaveCompression.NONE, storage, 0);
+        long written = 0;
+
+        for (int i = 1; i <= slots; i++) {
+            Map<String, String> info = new LinkedHashMap<>(snapshot.getSaveInfo());
+            info.put("savename", "Bob_" + i);
+            Map<String, String> basics = new LinkedHashMap<>(snapshot.getBasics());
+            basics.put("experience", String.valueOf(i * 100));
+
+            writer.submit(new SaveSnapshot(info, basics, snapshot.getSpecial()), "Bob_" + i + Game.SAVE_EXTENSION)
+                    .await();
+            written += storage.length("Bob_" + i + Game.SAVE_EXTENSION);
+        }
+        writer.close();
+
+        return written;
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File f : files)
+                delete(f);
+
+        Files.delete(file.toPath());
+    }
+
+    /**
+     * Writes count different saves through {@link SaveWriter} and loads all of them back
+     */
+    private static void throughput(String title, StorageBackend storage, SaveSnapshot snapshot, int count)
+            throws Exception {
+        SaveWriter writer = new SaveWriter(SaveFormat.BINARY, SaveCompression.NONE, storage, 0);
+
+        long start = System.nanoTime();
+        SaveWriter.Handle last = null;
+        for (int i = 0; i < count; i++)
+            last = writer.submit(snapshot, "Bob_" + i + Game.SAVE_EXTENSION);
+        last.await();
+        long save = System.nanoTime() - start;
+        writer.close();
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            try (InputStream in = storage.open("Bob_" + i + Game.SAVE_EXTENSION)) {
+                SaveFormat.load(in, new LinkedHashMap<>());
+            }
+        }
+        long load = System.nanoTime() - start;
+
+        System.out.printf("  %-8s %10d %10d%n", title, count * 1_000_000_000L / save, count * 1_000_000_000L / load);
+    }
+
+    private static void run(String title, SaveSnapshot snapshot, int iterations) throws IOException {
+        System.out.println(title + ":");
+        System.out.printf("  %-8s %-8s %10s %7s %10s %10s%n", "format", "codec", "bytes", "ratio", "save, us", "load, us");
+
+        for (SaveFormat format : SaveFormat.values()) {
+            long raw = write(snapshot, format, SaveCompression.NONE).length;
+
+            for (SaveCompression compression : SaveCompression.values()) {
+                byte[] data = write(snapshot, format, compression);
+
+                for (int i = 0; i < WARMUP; i++) {
+                    write(snapshot, format, compression);
+                    read(data);
+                }
+
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++)
+                    write(snapshot, format, compression);
+                long save = (System.nanoTime() - start) / iterations / 1000;
+
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++)
+                    read(data);
+                long load = (System.nanoTime() - start) / iterations / 1000;
+
+                System.out.printf("  %-8s %-8s %10d %7.2f %10d %10d%n", format.name().toLowerCase(),
+                        compression.name().toLowerCase(), data.length, (double) raw / data.length, save, load);
+            }
+        }
+        System.out.println();
+    }
+
+    private static byte[] write(SaveSnapshot snapshot, SaveFormat format, SaveCompression compression)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        format.write(snapshot, compression, out);
+
+        return out.toByteArray();
+    }
+
+    private static void read(byte[] data) throws IOException {
+        SaveFormat.load(new ByteArrayInputStream(data), new LinkedHashMap<>());
+    }
+
+    /**
+     * @return save of the character just after creation
+     */
+    private static SaveSnapshot realistic() {
+        Map<String, String> info = new LinkedHashMap<>();
+        info.put("savename", "Bob_1");
+        info.put("savetime", Game.Utils.getCurrentTimeStamp());
+
+        Map<String, String> basics = new LinkedHashMap<>();
+        basics.put("name", "Bob");
+        basics.put("age", "25");
+        basics.put("sex", "male");
+        basics.put("level", "1");
+
+        Map<String, Integer> special = new LinkedHashMap<>();
+        int[] values = {6, 7, 5, 4, 8, 6, 4};
+        for (int i = 0; i < Character.SPECIAL_KEYS.length; i++)
+            special.put(Character.SPECIAL_KEYS[i], values[i]);
+
+        return new SaveSnapshot(info, basics, special);
+    }
+
+    /**
+     * @return save with many world state entries in basics, as of a long played game
+     */
+    private static SaveSnapshot large(int entries) {
+        SaveSnapshot base = realistic();
+        Map<String, String> basics = new LinkedHashMap<>(base.getBasics());
+        Random random = new Random(42);
+        String[] states = {"visited", "cleared", "hostile", "friendly", "locked", "looted"};
+
+        for (int i = 0; i < entries; i++)
+            basics.put("world.location" + (i / 16) + ".object" + (i % 16),
+                    states[random.nextInt(states.length)] + ":" + random.nextInt(1000));
+
+        return new SaveSnapshot(base.getSaveInfo(), basics, base.getSpecial());
+    }
+}
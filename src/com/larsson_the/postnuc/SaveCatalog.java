@@ -0,0 +1,136 @@
+package com.larsson_the.postnuc;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Catalog of saves built only from {@link SaveHeader}s. Headers are read in parallel,
+ * save bodies are never touched.
+ */
+class SaveCatalog {
+    private static Logger log = Logger.getLogger(SaveCatalog.class.getName());
+
+    /**
+     * The newest saves first
+     */
+    public static final Comparator<Entry> BY_SAVETIME =
+            Comparator.comparingLong(Entry::getSavetime).reversed().thenComparing(Entry::getFilename);
+
+    public static final Comparator<Entry> BY_NAME =
+            Comparator.comparing(Entry::getName).thenComparing(BY_SAVETIME);
+
+    private final HeaderReader reader;
+
+    /**
+     * @param reader Reads first bytes of the save by its filename
+     */
+    SaveCatalog(HeaderReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads headers of all saves in parallel
+     * @param filenames Filenames of saves(for ex. 'Bob_1.sav')
+     * @param order Order of entries, for ex. {@link #BY_SAVETIME}
+     */
+    public List<Entry> load(String[] filenames, Comparator<Entry> order) {
+        return load(filenames, Collections.emptySet(), order);
+    }
+
+    /**
+     * Reads headers of all saves in parallel
+     * @param filenames Filenames of saves(for ex. 'Bob_1.sav')
+     * @param corrupted Filenames of saves which failed {@link SaveVerifier} check
+     * @param order Order of entries, for ex. {@link #BY_SAVETIME}
+     */
+    public List<Entry> load(String[] filenames, Set<String> corrupted, Comparator<Entry> order) {
+        return Arrays.stream(filenames)
+                .parallel()
+                .map(filename -> read(filename, corrupted.contains(filename)))
+                .sorted(order)
+                .collect(Collectors.toList());
+    }
+
+    private Entry read(String filename, boolean corrupted) {
+        try {
+            byte[] head = reader.read(filename, SaveHeader.SIZE);
+            return new Entry(filename, SaveHeader.parse(head, head.length), corrupted);
+        } catch (IOException e) {
+            log.warning("Unable to read header of " + filename + ": " + e.getMessage());
+            return new Entry(filename, null, true);
+        }
+    }
+
+    @FunctionalInterface
+    public interface HeaderReader {
+        /**
+         * @return up to length first bytes of the save
+         */
+        byte[] read(String filename, int length) throws IOException;
+    }
+
+    /**
+     * Save in the catalog. Legacy saves have no header: name is taken from the filename.
+     * Save is broken if its header can't be read or it failed integrity check.
+     */
+    public static class Entry {
+        private final String filename;
+        private final SaveHeader header;
+        private final boolean broken;
+
+        Entry(String filename, SaveHeader header, boolean broken) {
+            this.filename = filename;
+            this.header = header;
+            this.broken = broken;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public String getName() {
+            if (header != null && header.getName() != null)
+                return header.getName();
+
+            int idx = filename.lastIndexOf('_');
+            return (idx > 0) ? filename.substring(0, idx) : filename;
+        }
+
+        /**
+         * @return ms since epoch, 0 if unknown
+         */
+        public long getSavetime() {
+            return (header == null) ? 0 : header.getSavetime();
+        }
+
+        /**
+         * @return level of the character, 0 if unknown
+         */
+        public int getLevel() {
+            return (header == null) ? 0 : header.getLevel();
+        }
+
+        /**
+         * @return true if header can't be read or save is corrupted
+         */
+        public boolean isBroken() {
+            return broken;
+        }
+
+        /**
+         * @return caption of the save for the load menu
+         */
+        public String getCaption() {
+            if (header == null && broken)
+                return filename + " (повреждено)";
+
+            String caption = (getSavetime() == 0) ? getName() + " (" + filename + ")"
+                    : getName() + ", ур. " + getLevel() + ", " + Game.Utils.formatTimeStamp(getSavetime())
+                    + " (" + filename + ")";
+
+            return broken ? caption + " (повреждено)" : caption;
+        }
+    }
+}
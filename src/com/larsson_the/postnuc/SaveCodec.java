@@ -0,0 +1,41 @@
+package com.larsson_the.postnuc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Serializer of {@link SaveSnapshot} to one of {@link SaveFormat}s
+ */
+interface SaveCodec {
+    /**
+     * Writes snapshot to the stream. Stream is not closed.
+     */
+    void write(SaveSnapshot snapshot, OutputStream out) throws IOException;
+
+    /**
+     * Reads snapshot from the stream. Stream is not closed.
+     * @throws CorruptedSaveException if data in the stream is not a valid save
+     */
+    SaveSnapshot read(InputStream in) throws IOException;
+
+    /**
+     * Reads character from the stream. Stream is not closed.
+     * @param saveInfo Map filled with save info
+     * @throws CorruptedSaveException if data in the stream is not a valid save
+     */
+    default Character load(InputStream in, Map<String, String> saveInfo) throws IOException {
+        SaveSnapshot snapshot = read(in);
+        saveInfo.putAll(snapshot.getSaveInfo());
+
+        return snapshot.toCharacter();
+    }
+
+    /**
+     * @return true if {@link SaveJournal} batches can be appended to the files of this format
+     */
+    default boolean isAppendable() {
+        return false;
+    }
+}
@@ -0,0 +1,116 @@
+package com.larsson_the.postnuc;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * Compression of save bodies. Id of compression is stored in {@link SaveHeader},
+ * so saves are decompressed transparently on load.
+ */
+enum SaveCompression {
+    NONE(0) {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return new NonClosingOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    },
+    DEFLATE(1) {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+            return new DeflaterOutputStream(new NonClosingOutputStream(out), deflater, 8192) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return new InflaterInputStream(in);
+        }
+    },
+    GZIP(2) {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new GZIPOutputStream(new NonClosingOutputStream(out), 8192);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new GZIPInputStream(in, 8192);
+        }
+    },
+    LZ(3) {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return new LzCodec.Output(new NonClosingOutputStream(out));
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return new LzCodec.Input(in);
+        }
+    };
+
+    private final int id;
+
+    SaveCompression(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return compression with given id, null if it is unknown
+     */
+    public static SaveCompression byId(int id) {
+        for (SaveCompression compression : values())
+            if (compression.id == id)
+                return compression;
+
+        return null;
+    }
+
+    /**
+     * @return compressing stream. Closing it finishes compression but does not close underlying stream
+     */
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * @return decompressing stream
+     */
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    /**
+     * Passes everything to the underlying stream except close(): it only flushes
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        private NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.larsson_the.postnuc;
+
+import java.io.*;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Converts save files between {@link SaveFormat}s and {@link SaveCompression}s.
+ *
+ * <h4>Usage example:</h4>
+ * <pre>
+ *     java com.larsson_the.postnuc.SaveConverter binary saves/Bob_1.json saves/Julia_1.sav
+ *     java com.larsson_the.postnuc.SaveConverter json saves/Bob_1.sav
+ *     java com.larsson_the.postnuc.SaveConverter binary:lz saves/Bob_1.sav
+ * </pre>
+ * Legacy '.json' saves get '.sav' extension after conversion, unless another save already has that name.
+ */
+class SaveConverter {
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: SaveConverter <json|binary>[:none|deflate|gzip|lz] <save file>...");
+            return;
+        }
+
+        String[] type = args[0].split(":", 2);
+        SaveFormat format;
+        SaveCompression compression;
+        try {
+            format = SaveFormat.valueOf(type[0].toUpperCase());
+            compression = (type.length > 1) ? SaveCompression.valueOf(type[1].toUpperCase()) : SaveCompression.NONE;
+        } catch (IllegalArgumentException e) {
+            System.out.println("Неизвестный формат - " + args[0]);
+            return;
+        }
+
+        for (int i = 1; i < args.length; i++) {
+            try {
+                File result = convert(new File(args[i]), format, compression);
+                System.out.println(args[i] + " -> " + result);
+            } catch (IOException e) {
+                System.out.println("Ошибка(" + args[i] + "): " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Converts save file to the format without compression. Legacy '.json' file is replaced with '.sav' one.
+     * @return converted file
+     */
+    public static File convert(File file, SaveFormat format) throws IOException {
+        return convert(file, format, SaveCompression.NONE);
+    }
+
+    /**
+     * Converts save file to the format and compression. Legacy '.json' file is replaced with '.sav' one.
+     * @return converted file
+     * @throws FileAlreadyExistsException if the legacy file would replace another save, nothing is changed then
+     */
+    public static File convert(File file, SaveFormat format, SaveCompression compression) throws IOException {
+        SaveSnapshot snapshot = SaveFormat.read(file);
+
+        String name = file.getName();
+        if (name.endsWith(Game.LEGACY_SAVE_EXTENSION))
+            name = name.substring(0, name.length() - Game.LEGACY_SAVE_EXTENSION.length()) + Game.SAVE_EXTENSION;
+
+        File target = new File(file.getParentFile(), name);
+        if (!target.equals(file) && target.exists())
+            throw new FileAlreadyExistsException(target.getPath(), file.getPath(),
+                    "Сохранение с таким именем уже существует");
+
+        File tmp = new File(file.getParentFile(), name + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            format.write(snapshot, compression, out);
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        if (!target.equals(file))
+            Files.delete(file.toPath());
+
+        return target;
+    }
+}
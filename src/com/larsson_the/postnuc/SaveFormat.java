@@ -0,0 +1,135 @@
+package com.larsson_the.postnuc;
+
+import java.io.*;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Formats of save bodies. Every save file starts with {@link SaveHeader} which contains format of the body,
+ * so format is detected by the content of the file, not by its extension.
+ */
+enum SaveFormat {
+    JSON(0, new JsonSaveCodec()),
+    BINARY(1, new BinarySaveCodec());
+
+    private final int id;
+    private final SaveCodec codec;
+
+    SaveFormat(int id, SaveCodec codec) {
+        this.id = id;
+        this.codec = codec;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public SaveCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return format with given id, null if it is unknown
+     */
+    public static SaveFormat byId(int id) {
+        for (SaveFormat format : values())
+            if (format.id == id)
+                return format;
+
+        return null;
+    }
+
+    /**
+     * Writes header and uncompressed body of the save. Stream is not closed.
+     */
+    public void write(SaveSnapshot snapshot, OutputStream out) throws IOException {
+        write(snapshot, SaveCompression.NONE, out);
+    }
+
+    /**
+     * Writes header and compressed body of the save. Body is buffered to put its checksum into the header.
+     * Stream is not closed.
+     */
+    public void write(SaveSnapshot snapshot, SaveCompression compression, OutputStream out) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+        try (OutputStream compressed = compression.compress(body)) {
+            codec.write(snapshot, compressed);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body.toByteArray());
+
+        SaveHeader.of(this, compression, snapshot, (int) crc.getValue()).write(out);
+        body.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Reads header of the save
+     * @return header, null if it is legacy save without header
+     */
+    public static SaveHeader readHeader(InputStream in) throws IOException {
+        byte[] head = new byte[SaveHeader.SIZE];
+        int length = 0, n;
+
+        while (length < head.length && (n = in.read(head, length, head.length - length)) > 0)
+            length += n;
+
+        return SaveHeader.parse(head, length);
+    }
+
+    /**
+     * Reads save of any format
+     */
+    public static SaveSnapshot read(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Reads save of any format from the stream. Stream is not closed.
+     */
+    public static SaveSnapshot read(InputStream in) throws IOException {
+        if (!in.markSupported())
+            in = new BufferedInputStream(in);
+
+        SaveHeader header = skipHeader(in);
+        return header.getFormat().codec.read(header.getCompression().decompress(in));
+    }
+
+    /**
+     * Loads character from the save of any format without intermediate snapshot. Stream is not closed.
+     * @param saveInfo Map filled with save info
+     */
+    public static Character load(InputStream in, Map<String, String> saveInfo) throws IOException {
+        if (!in.markSupported())
+            in = new BufferedInputStream(in);
+
+        SaveHeader header = skipHeader(in);
+        return header.getFormat().codec.load(header.getCompression().decompress(in), saveInfo);
+    }
+
+    /**
+     * Skips header of the save, stream must support mark/reset
+     * @return header, for legacy saves - header of uncompressed JSON
+     */
+    private static SaveHeader skipHeader(InputStream in) throws IOException {
+        in.mark(SaveHeader.SIZE);
+        SaveHeader header = readHeader(in);
+        in.reset();
+
+        if (header == null)
+            return new SaveHeader(0, JSON, SaveCompression.NONE, 0, 0, 0, 0, null);
+
+        long toSkip = header.getSize();
+        while (toSkip > 0) {
+            long n = in.skip(toSkip);
+            if (n <= 0)
+                throw new CorruptedSaveException("Сохранение обрезано!");
+            toSkip -= n;
+        }
+
+        return header;
+    }
+}
@@ -0,0 +1,203 @@
+package com.larsson_the.postnuc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Fixed-size header of the save file. Contains format and compression of the body and metadata of the save,
+ * so the load menu can be built without reading save bodies.<br>
+ * Layout(64 bytes): [magic 'PNSV'(4)][version(2)][flags(2)][format(1)][compression(1)][reserved(2)]
+ * [checksum(4)][savetime, ms since epoch(8)][level(2)][name length(1)][name(37)].<br>
+ * If flag {@link #FLAG_CHECKSUM} is set, checksum is CRC32 of everything after the header(body and journal).
+ * Checksum and metadata are rewritten in place when a journal batch is appended.<br>
+ * Saves of version 1 have only [magic][version][flags] and binary body. Legacy JSON saves have no header at all.
+ */
+class SaveHeader {
+    static final byte[] MAGIC = {'P', 'N', 'S', 'V'};
+    static final int VERSION = 2;
+    static final int SIZE = 64;
+    static final int CHECKSUM_OFFSET = 12;
+    static final int METADATA_OFFSET = 16;
+    static final int METADATA_SIZE = SIZE - METADATA_OFFSET;
+    static final int FLAG_CHECKSUM = 1;
+
+    private static final int V1_SIZE = 8;
+    private static final int FORMAT_OFFSET = 8;
+    private static final int COMPRESSION_OFFSET = 9;
+    private static final int MAX_NAME_LENGTH = 37;
+
+    private final int version;
+    private final SaveFormat format;
+    private final SaveCompression compression;
+    private final int flags;
+    private final int checksum;
+    private final long savetime;
+    private final int level;
+    private final String name;
+
+    SaveHeader(int version, SaveFormat format, SaveCompression compression, int flags, int checksum,
+               long savetime, int level, String name) {
+        this.version = version;
+        this.format = format;
+        this.compression = compression;
+        this.flags = flags;
+        this.checksum = checksum;
+        this.savetime = savetime;
+        this.level = level;
+        this.name = name;
+    }
+
+    /**
+     * Header of the snapshot written in given format and compression
+     * @param checksum CRC32 of everything after the header
+     */
+    public static SaveHeader of(SaveFormat format, SaveCompression compression, SaveSnapshot snapshot, int checksum) {
+        long savetime = Game.Utils.parseTimeStamp(snapshot.getSaveInfo().get("savetime"));
+        int level;
+        try {
+            level = Integer.parseInt(snapshot.getBasics().getOrDefault("level", "1"));
+        } catch (NumberFormatException e) {
+            level = 1;
+        }
+
+        return new SaveHeader(VERSION, format, compression, FLAG_CHECKSUM, checksum,
+                savetime, level, snapshot.getBasics().get("name"));
+    }
+
+    /**
+     * @param head First bytes of the file(up to {@link #SIZE})
+     * @param length Amount of read bytes
+     * @return header, null if there is no header(legacy JSON save)
+     * @throws CorruptedSaveException if header is broken or of unknown version
+     */
+    public static SaveHeader parse(byte[] head, int length) throws CorruptedSaveException {
+        if (length < MAGIC.length || !Arrays.equals(Arrays.copyOf(head, MAGIC.length), MAGIC))
+            return null;
+        if (length < V1_SIZE)
+            throw new CorruptedSaveException("Заголовок сохранения обрезан!");
+
+        ByteBuffer buf = ByteBuffer.wrap(head, 0, length);
+        int version = buf.getShort(4) & 0xFFFF;
+
+        if (version == 1)
+            return new SaveHeader(1, SaveFormat.BINARY, SaveCompression.NONE, 0, 0, 0, 0, null);
+        if (version > VERSION)
+            throw new CorruptedSaveException("Сохранение создано более новой версией игры(" + version + ")!");
+        if (length < SIZE)
+            throw new CorruptedSaveException("Заголовок сохранения обрезан!");
+
+        SaveFormat format = SaveFormat.byId(head[FORMAT_OFFSET]);
+        if (format == null)
+            throw new CorruptedSaveException("Неизвестный формат сохранения - " + head[FORMAT_OFFSET]);
+
+        SaveCompression compression = SaveCompression.byId(head[COMPRESSION_OFFSET]);
+        if (compression == null)
+            throw new CorruptedSaveException("Неизвестное сжатие сохранения - " + head[COMPRESSION_OFFSET]);
+
+        int flags = buf.getShort(6) & 0xFFFF;
+        int checksum = buf.getInt(CHECKSUM_OFFSET);
+        long savetime = buf.getLong(METADATA_OFFSET);
+        int level = buf.getShort(METADATA_OFFSET + 8) & 0xFFFF;
+        int nameLength = Math.min(head[METADATA_OFFSET + 10] & 0xFF, MAX_NAME_LENGTH);
+        String name = new String(head, METADATA_OFFSET + 11, nameLength, StandardCharsets.UTF_8);
+
+        return new SaveHeader(version, format, compression, flags, checksum, savetime, level, name);
+    }
+
+    public void write(OutputStream out) throws IOException {
+        byte[] bytes = new byte[SIZE];
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+
+        buf.put(MAGIC);
+        buf.putShort((short) VERSION);
+        buf.putShort((short) flags);
+        buf.put((byte) format.getId());
+        buf.put((byte) compression.getId());
+        buf.putInt(CHECKSUM_OFFSET, checksum);
+        System.arraycopy(getMetadata(), 0, bytes, METADATA_OFFSET, METADATA_SIZE);
+
+        out.write(bytes);
+    }
+
+    /**
+     * @return metadata part of the header. It can be rewritten in place when the save is changed
+     */
+    public byte[] getMetadata() {
+        byte[] bytes = new byte[METADATA_SIZE];
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        byte[] nameBytes = (name == null) ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+        int nameLength = Math.min(nameBytes.length, MAX_NAME_LENGTH);
+
+        buf.putLong(savetime);
+        buf.putShort((short) level);
+        buf.put((byte) nameLength);
+        buf.put(nameBytes, 0, nameLength);
+
+        return bytes;
+    }
+
+    /**
+     * @return checksum and metadata - part of the header from {@link #CHECKSUM_OFFSET} rewritten in place
+     */
+    public byte[] getRewritable() {
+        byte[] bytes = new byte[SIZE - CHECKSUM_OFFSET];
+        ByteBuffer.wrap(bytes).putInt(checksum);
+        System.arraycopy(getMetadata(), 0, bytes, METADATA_OFFSET - CHECKSUM_OFFSET, METADATA_SIZE);
+
+        return bytes;
+    }
+
+    /**
+     * @return size of the header in the file
+     */
+    public int getSize() {
+        return (version == 1) ? V1_SIZE : SIZE;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public SaveFormat getFormat() {
+        return format;
+    }
+
+    public SaveCompression getCompression() {
+        return compression;
+    }
+
+    public boolean hasChecksum() {
+        return (flags & FLAG_CHECKSUM) != 0;
+    }
+
+    /**
+     * @return CRC32 of everything after the header, valid only if {@link #hasChecksum()}
+     */
+    public int getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * @return ms since epoch, 0 if unknown
+     */
+    public long getSavetime() {
+        return savetime;
+    }
+
+    /**
+     * @return level of the character, 0 if unknown
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return name of the character, null if unknown
+     */
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,228 @@
+package com.larsson_the.postnuc;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Journal of delta saves appended to the binary save after the full snapshot.<br>
+ * Every delta save is one batch: [length(varint)][records][CRC32 of records(4 bytes)],
+ * record is [kind(varint)][length(varint)][payload]. Records of unknown kind are skipped.
+ * Changed traits, skills, perks and inventory are written whole, as their sections of {@link BinarySaveCodec}.
+ * Torn batch at the end of the file(game was killed while appending) is ignored on load.
+ */
+class SaveJournal {
+    private static Logger log = Logger.getLogger(SaveJournal.class.getName());
+
+    static final int KIND_SAVE_INFO_PUT = 1;
+    static final int KIND_SAVE_INFO_REMOVE = 2;
+    static final int KIND_BASIC_PUT = 3;
+    static final int KIND_BASIC_REMOVE = 4;
+    static final int KIND_SPECIAL_PUT = 5;
+    static final int KIND_TRAITS = 6;
+    static final int KIND_SKILLS = 7;
+    static final int KIND_PERKS = 8;
+    static final int KIND_INVENTORY = 9;
+
+    private SaveJournal() {}
+
+    /**
+     * @return batch with changes between two snapshots, null if nothing was changed
+     */
+    public static byte[] diff(SaveSnapshot base, SaveSnapshot next) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream(64);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(32);
+
+        diffStrings(records, record, base.getSaveInfo(), next.getSaveInfo(),
+                KIND_SAVE_INFO_PUT, KIND_SAVE_INFO_REMOVE);
+        diffStrings(records, record, base.getBasics(), next.getBasics(),
+                KIND_BASIC_PUT, KIND_BASIC_REMOVE);
+
+        for (Map.Entry<String, Integer> entry : next.getSpecial().entrySet()) {
+            if (entry.getValue().equals(base.getSpecial().get(entry.getKey())))
+                continue;
+
+            BinarySaveCodec.writeString(record, entry.getKey());
+            BinarySaveCodec.writeSignedVarint(record, entry.getValue());
+            writeRecord(records, KIND_SPECIAL_PUT, record);
+        }
+
+        if (!next.getTraits().equals(base.getTraits())) {
+            BinarySaveCodec.writeStringList(record, next.getTraits());
+            writeRecord(records, KIND_TRAITS, record);
+        }
+
+        if (!next.getSkillPoints().equals(base.getSkillPoints())
+                || !next.getTaggedSkills().equals(base.getTaggedSkills())) {
+            BinarySaveCodec.writeSkills(record, next.getSkillPoints(), next.getTaggedSkills());
+            writeRecord(records, KIND_SKILLS, record);
+        }
+
+        if (!next.getPerks().equals(base.getPerks())) {
+            BinarySaveCodec.writeIntMap(record, next.getPerks());
+            writeRecord(records, KIND_PERKS, record);
+        }
+
+        if (!next.getInventory().equals(base.getInventory())) {
+            BinarySaveCodec.writeInventory(record, next.getInventory());
+            writeRecord(records, KIND_INVENTORY, record);
+        }
+
+        if (records.size() == 0)
+            return null;
+
+        CRC32 crc = new CRC32();
+        crc.update(records.toByteArray());
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(records.size() + 8);
+        DataOutputStream data = new DataOutputStream(batch);
+        BinarySaveCodec.writeVarint(data, records.size());
+        records.writeTo(data);
+        data.writeInt((int) crc.getValue());
+
+        return batch.toByteArray();
+    }
+
+    /**
+     * Applies all batches from the stream(until EOF) to the snapshot
+     * @return snapshot with applied changes
+     */
+    public static SaveSnapshot replay(SaveSnapshot base, InputStream in) throws IOException {
+        PushbackInputStream pin = new PushbackInputStream(in);
+        DataInputStream data = new DataInputStream(pin);
+        Map<String, String> saveInfo = new LinkedHashMap<>(base.getSaveInfo());
+        Map<String, String> basics = new LinkedHashMap<>(base.getBasics());
+        Map<String, Integer> special = new LinkedHashMap<>(base.getSpecial());
+        List<String> traits = base.getTraits();
+        Map<String, Integer> skillPoints = base.getSkillPoints();
+        Set<String> taggedSkills = base.getTaggedSkills();
+        Map<String, Integer> perks = base.getPerks();
+        List<Inventory.Slot> inventory = base.getInventory();
+        int batches = 0;
+
+        while (true) {
+            byte[] records;
+
+            int b = pin.read();
+            if (b < 0)
+                break;
+            pin.unread(b);
+
+            try {
+                records = BinarySaveCodec.readBytes(data, BinarySaveCodec.readVarint(data));
+
+                CRC32 crc = new CRC32();
+                crc.update(records);
+                if (data.readInt() != (int) crc.getValue()) {
+                    log.warning("Journal batch " + batches + " has wrong checksum. Rest of journal is ignored");
+                    break;
+                }
+            } catch (EOFException | CorruptedSaveException e) {
+                log.warning("Journal batch " + batches + " is torn. Rest of journal is ignored");
+                break;
+            }
+
+            InputStream batch = new ByteArrayInputStream(records);
+            while (batch.available() > 0) {
+                int kind = BinarySaveCodec.readVarint(batch);
+                byte[] payload;
+                try {
+                    payload = BinarySaveCodec.readBytes(batch, BinarySaveCodec.readVarint(batch));
+                } catch (EOFException e) {
+                    throw new CorruptedSaveException("Повреждённая запись журнала сохранения!");
+                }
+                ByteArrayInputStream record = new ByteArrayInputStream(payload);
+
+                switch (kind) {
+                    case KIND_SAVE_INFO_PUT:
+                        saveInfo.put(BinarySaveCodec.readString(record), BinarySaveCodec.readString(record));
+                        break;
+                    case KIND_SAVE_INFO_REMOVE:
+                        saveInfo.remove(BinarySaveCodec.readString(record));
+                        break;
+                    case KIND_BASIC_PUT:
+                        basics.put(BinarySaveCodec.readString(record), BinarySaveCodec.readString(record));
+                        break;
+                    case KIND_BASIC_REMOVE:
+                        basics.remove(BinarySaveCodec.readString(record));
+                        break;
+                    case KIND_SPECIAL_PUT:
+                        special.put(BinarySaveCodec.readString(record), BinarySaveCodec.readSignedVarint(record));
+                        break;
+                    case KIND_TRAITS:
+                        traits = BinarySaveCodec.readStringList(record);
+                        break;
+                    case KIND_SKILLS:
+                        skillPoints = new LinkedHashMap<>();
+                        taggedSkills = new LinkedHashSet<>();
+                        BinarySaveCodec.readSkills(record, skillPoints, taggedSkills);
+                        break;
+                    case KIND_PERKS:
+                        perks = BinarySaveCodec.readIntMap(record);
+                        break;
+                    case KIND_INVENTORY:
+                        inventory = BinarySaveCodec.readInventory(record);
+                        break;
+                    default:
+                        // Record of newer version: skipped
+                }
+            }
+            batches++;
+        }
+
+        return batches == 0 ? base : new SaveSnapshot(saveInfo, basics, special).withTraits(traits)
+                .withSkills(skillPoints, taggedSkills).withPerks(perks).withInventory(inventory);
+    }
+
+    /**
+     * @param offset Offset of the journal in the data
+     * @return offset of the last batch, it may be torn. -1 if there are no batches.
+     */
+    static int lastBatch(byte[] data, int offset) {
+        int last = -1;
+
+        while (offset < data.length) {
+            ByteArrayInputStream in = new ByteArrayInputStream(data, offset, data.length - offset);
+            last = offset;
+            try {
+                int length = BinarySaveCodec.readVarint(in);
+                offset = data.length - in.available() + length + 4;
+                if (length < 0 || offset < 0)
+                    break;
+            } catch (IOException e) {
+                break;
+            }
+        }
+
+        return last;
+    }
+
+    private static void diffStrings(ByteArrayOutputStream records, ByteArrayOutputStream record,
+                                    Map<String, String> base, Map<String, String> next,
+                                    int putKind, int removeKind) throws IOException {
+        for (Map.Entry<String, String> entry : next.entrySet()) {
+            if (Objects.equals(entry.getValue(), base.get(entry.getKey())))
+                continue;
+
+            BinarySaveCodec.writeString(record, entry.getKey());
+            BinarySaveCodec.writeString(record, entry.getValue());
+            writeRecord(records, putKind, record);
+        }
+
+        for (String key : base.keySet()) {
+            if (next.containsKey(key))
+                continue;
+
+            BinarySaveCodec.writeString(record, key);
+            writeRecord(records, removeKind, record);
+        }
+    }
+
+    private static void writeRecord(OutputStream out, int kind, ByteArrayOutputStream record) throws IOException {
+        BinarySaveCodec.writeVarint(out, kind);
+        BinarySaveCodec.writeVarint(out, record.size());
+        record.writeTo(out);
+        record.reset();
+    }
+}
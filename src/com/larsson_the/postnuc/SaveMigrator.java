@@ -0,0 +1,227 @@
+package com.larsson_the.postnuc;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upgrades saves to the current schema. Version of the schema is stored in save info('version'),
+ * saves without it have version 1. Every {@link Migration} upgrades save from its version to the next one.<br>
+ * Saves are upgraded one at a time: a save is read, migrated and written back before the next one is read,
+ * so batch upgrade needs memory only for saves processed by the workers.
+ *
+ * <h4>Usage example:</h4>
+ * <pre>
+ *     java com.larsson_the.postnuc.SaveMigrator saves
+ *     java com.larsson_the.postnuc.SaveMigrator saves 8
+ * </pre>
+ * Arguments are saves folder and amount of workers(default - amount of cores).
+ */
+class SaveMigrator {
+    /**
+     * Current version of the save schema
+     */
+    static final int VERSION = 2;
+
+    private static final Map<Integer, Migration> MIGRATIONS = new HashMap<>();
+
+    static {
+        // 1 -> 2: level is always stored in basics
+        MIGRATIONS.put(1, (saveInfo, basics, special) -> basics.putIfAbsent("level", "1"));
+    }
+
+    private SaveMigrator() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: SaveMigrator <saves folder> [workers]");
+            return;
+        }
+
+        int workers = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        try (StorageBackend storage = new FileStorage(new File(args[0]), true)) {
+            Report report = migrateAll(storage, workers);
+
+            System.out.println("Обновлено: " + report.getUpgraded() + ", актуальных: " + report.getCurrent()
+                    + ", ошибок: " + report.getFailed().size());
+            System.out.printf("%d сохранений за %d мс(%.1f сохр./с, %.2f МБ/с)%n", report.getTotal(),
+                    report.getMillis(), report.getSavesPerSecond(), report.getMegabytesPerSecond());
+            for (Map.Entry<String, String> e : report.getFailed().entrySet())
+                System.out.println("Ошибка(" + e.getKey() + "): " + e.getValue());
+        } catch (DirectoryCreatingException | InvalidPathException e) {
+            System.out.println("Ошибка: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return version of the save schema
+     */
+    public static int getVersion(Map<String, String> saveInfo) {
+        try {
+            return Integer.parseInt(saveInfo.getOrDefault("version", "1"));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * @return snapshot upgraded to the current version, the same snapshot if it is current
+     * @throws CorruptedSaveException if save is newer than the game or there is no migration from its version
+     */
+    public static SaveSnapshot upgrade(SaveSnapshot snapshot) throws CorruptedSaveException {
+        int version = getVersion(snapshot.getSaveInfo());
+        if (version == VERSION)
+            return snapshot;
+        if (version > VERSION)
+            throw new CorruptedSaveException("Сохранение создано более новой версией игры(" + version + ")!");
+
+        Map<String, String> saveInfo = new LinkedHashMap<>(snapshot.getSaveInfo());
+        Map<String, String> basics = new LinkedHashMap<>(snapshot.getBasics());
+        Map<String, Integer> special = new LinkedHashMap<>(snapshot.getSpecial());
+
+        for (; version < VERSION; version++) {
+            Migration migration = MIGRATIONS.get(version);
+            if (migration == null)
+                throw new CorruptedSaveException("Нет обновления сохранения с версии " + version);
+
+            migration.migrate(saveInfo, basics, special);
+        }
+        saveInfo.put("version", String.valueOf(VERSION));
+
+        return new SaveSnapshot(saveInfo, basics, special).withTraits(snapshot.getTraits())
+                .withSkills(snapshot.getSkillPoints(), snapshot.getTaggedSkills()).withPerks(snapshot.getPerks())
+                .withInventory(snapshot.getInventory());
+    }
+
+    /**
+     * Upgrades the save in the storage. Save keeps its format and compression,
+     * legacy '.json' save is replaced with '.sav' one if there is no such save yet.
+     * @return true if the save was upgraded, false if it is current
+     */
+    public static boolean migrate(StorageBackend storage, String filename) throws IOException {
+        SaveHeader header;
+        SaveSnapshot snapshot;
+        try (InputStream in = new BufferedInputStream(storage.open(filename))) {
+            in.mark(SaveHeader.SIZE);
+            header = SaveFormat.readHeader(in);
+            in.reset();
+
+            snapshot = SaveFormat.read(in);
+        }
+
+        SaveSnapshot upgraded = upgrade(snapshot);
+        if (upgraded == snapshot)
+            return false;
+
+        SaveFormat format = (header == null) ? SaveFormat.JSON : header.getFormat();
+        SaveCompression compression = (header == null) ? SaveCompression.NONE : header.getCompression();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        format.write(upgraded, compression, out);
+
+        String target = filename;
+        if (filename.endsWith(Game.LEGACY_SAVE_EXTENSION))
+            target = filename.substring(0, filename.length() - Game.LEGACY_SAVE_EXTENSION.length())
+                    + Game.SAVE_EXTENSION;
+
+        if (!target.equals(filename) && storage.length(target) < 0) {
+            storage.put(target, out.toByteArray());
+            storage.delete(filename);
+        } else {
+            storage.put(filename, out.toByteArray());
+        }
+
+        return true;
+    }
+
+    /**
+     * Upgrades all saves in the storage on a bounded pool of workers
+     * @param workers Amount of worker threads
+     */
+    public static Report migrateAll(StorageBackend storage, int workers) throws IOException, InterruptedException {
+        Report report = new Report();
+        // Queue is bounded, so only a few saves are waiting for the workers at once
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workers * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        long start = System.nanoTime();
+        for (String filename : storage.list()) {
+            if (!filename.endsWith(Game.SAVE_EXTENSION) && !filename.endsWith(Game.LEGACY_SAVE_EXTENSION))
+                continue;
+
+            pool.execute(() -> {
+                long length = storage.length(filename);
+                try {
+                    if (migrate(storage, filename))
+                        report.upgraded.incrementAndGet();
+                    else
+                        report.current.incrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                    report.failed.put(filename, String.valueOf(e.getMessage()));
+                }
+                report.bytes.addAndGet(Math.max(0, length));
+            });
+        }
+
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        report.nanos = System.nanoTime() - start;
+
+        return report;
+    }
+
+    @FunctionalInterface
+    public interface Migration {
+        /**
+         * Upgrades save from its version to the next one. Maps can be changed.
+         */
+        void migrate(Map<String, String> saveInfo, Map<String, String> basics, Map<String, Integer> special);
+    }
+
+    /**
+     * Result of the batch upgrade
+     */
+    public static class Report {
+        private final AtomicInteger upgraded = new AtomicInteger();
+        private final AtomicInteger current = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private final Map<String, String> failed = new ConcurrentSkipListMap<>();
+        private long nanos;
+
+        public int getUpgraded() {
+            return upgraded.get();
+        }
+
+        /**
+         * @return amount of saves which already had the current version
+         */
+        public int getCurrent() {
+            return current.get();
+        }
+
+        /**
+         * @return filenames of failed saves with error messages
+         */
+        public Map<String, String> getFailed() {
+            return failed;
+        }
+
+        public int getTotal() {
+            return upgraded.get() + current.get() + failed.size();
+        }
+
+        public long getMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+
+        public double getSavesPerSecond() {
+            return (nanos == 0) ? 0 : getTotal() * 1e9 / nanos;
+        }
+
+        public double getMegabytesPerSecond() {
+            return (nanos == 0) ? 0 : bytes.get() * 1e9 / nanos / (1024 * 1024);
+        }
+    }
+}
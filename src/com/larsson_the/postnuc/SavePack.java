@@ -0,0 +1,599 @@
+package com.larsson_the.postnuc;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Single-file archive of all save slots, accessed through memory-mapped I/O.<br>
+ * Layout: header [magic 'PNPK'(4)][version(2)][flags(2)][index capacity(4)][generation(8)],
+ * then index block of fixed-size entries [name length(1)][name(63)][offset(8)][length(4)][capacity(4)][modified(8)],
+ * then data blocks. Every slot owns an extent of whole blocks, space of deleted or moved slots is reused.
+ * Index entry is updated only after the data is written(and forced to the disk if fsync is on),
+ * so interrupted write leaves the old slot intact.
+ *
+ * <h4>Offline compaction:</h4>
+ * <pre>
+ *     java com.larsson_the.postnuc.SavePack compact saves.pack
+ * </pre>
+ */
+class SavePack implements StorageBackend {
+    private static Logger log = Logger.getLogger(SavePack.class.getName());
+
+    private static final byte[] MAGIC = {'P', 'N', 'P', 'K'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int ENTRY_SIZE = 96;
+    private static final int MAX_NAME_LENGTH = 63;
+    private static final int BLOCK_SIZE = 512;
+    private static final int DEFAULT_INDEX_CAPACITY = 1024;
+
+    private static final int FLAGS_OFFSET = 6;
+    private static final int GENERATION_OFFSET = 12;
+    /**
+     * Saves of the folder were imported, so an empty pack is not filled from the folder again
+     */
+    private static final int FLAG_IMPORTED = 1;
+    private static final int ENTRY_OFFSET = 64;
+    private static final int ENTRY_LENGTH = 72;
+    private static final int ENTRY_CAPACITY = 76;
+    private static final int ENTRY_MODIFIED = 80;
+
+    private final File file;
+    private final boolean fsync;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    private int indexCapacity;
+    private long generation;
+    private long dataEnd;
+    private final Map<String, Integer> entries;
+    private final TreeMap<Long, Long> free;
+
+    /**
+     * Opens pack file, creates new one if it does not exist
+     * @param fsync if true - mapped data is forced to the disk after every change
+     */
+    SavePack(File file, boolean fsync) throws IOException {
+        this(file, fsync, DEFAULT_INDEX_CAPACITY);
+    }
+
+    private SavePack(File file, boolean fsync, int indexCapacity) throws IOException {
+        this.file = file;
+        this.fsync = fsync;
+        this.entries = new HashMap<>();
+        this.free = new TreeMap<>();
+
+        boolean created = !file.exists();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        if (created || channel.size() == 0) {
+            this.indexCapacity = indexCapacity;
+            this.generation = 0;
+            this.dataEnd = dataStart();
+
+            map(dataEnd);
+            buffer.put(MAGIC);
+            buffer.putShort(4, (short) VERSION);
+            buffer.putInt(8, indexCapacity);
+            buffer.putLong(GENERATION_OFFSET, generation);
+            force();
+        } else {
+            map(channel.size());
+            open();
+        }
+    }
+
+    /**
+     * @return names of all slots
+     */
+    public synchronized String[] list() {
+        return entries.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * @return names of all slots with time of their last modification
+     */
+    public synchronized Map<String, Long> listModified() {
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, Integer> e : entries.entrySet())
+            result.put(e.getKey(), buffer.getLong(entryPos(e.getValue()) + ENTRY_MODIFIED));
+
+        return result;
+    }
+
+    public synchronized boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * @return length of slot data, -1 if there is no such slot
+     */
+    public synchronized long length(String name) {
+        Integer idx = entries.get(name);
+        return (idx == null) ? -1 : buffer.getInt(entryPos(idx) + ENTRY_LENGTH);
+    }
+
+    /**
+     * @return counter increased on every change of the pack
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return true if saves were imported by {@link #importFrom(File, FilenameFilter)}.
+     * Packs of older versions have no flag, they are imported if they were changed at least once.
+     */
+    public synchronized boolean isImported() {
+        return (buffer.getShort(FLAGS_OFFSET) & FLAG_IMPORTED) != 0 || generation > 0;
+    }
+
+    @Override
+    public long getStamp() {
+        return getGeneration();
+    }
+
+    @Override
+    public InputStream open(String name) throws FileNotFoundException {
+        return new ByteArrayInputStream(read(name));
+    }
+
+    /**
+     * @return copy of slot data
+     * @throws FileNotFoundException if there is no such slot
+     */
+    public synchronized byte[] read(String name) throws FileNotFoundException {
+        Integer idx = entries.get(name);
+        if (idx == null)
+            throw new FileNotFoundException("Сохранение " + name + " не найдено в архиве!");
+
+        int pos = entryPos(idx);
+        byte[] data = new byte[buffer.getInt(pos + ENTRY_LENGTH)];
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) buffer.getLong(pos + ENTRY_OFFSET));
+        view.get(data);
+
+        return data;
+    }
+
+    /**
+     * @return copy of part of slot data(shorter if slot is shorter)
+     * @throws FileNotFoundException if there is no such slot
+     */
+    public synchronized byte[] read(String name, int position, int length) throws FileNotFoundException {
+        Integer idx = entries.get(name);
+        if (idx == null)
+            throw new FileNotFoundException("Сохранение " + name + " не найдено в архиве!");
+
+        int pos = entryPos(idx);
+        byte[] data = new byte[Math.max(0, Math.min(length, buffer.getInt(pos + ENTRY_LENGTH) - position))];
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) buffer.getLong(pos + ENTRY_OFFSET) + position);
+        view.get(data);
+
+        return data;
+    }
+
+    /**
+     * Overwrites part of existing slot data in place
+     */
+    public synchronized void write(String name, int position, byte[] data) throws IOException {
+        Integer idx = entries.get(name);
+        if (idx == null)
+            throw new FileNotFoundException("Сохранение " + name + " не найдено в архиве!");
+
+        int pos = entryPos(idx);
+        if (position + data.length > buffer.getInt(pos + ENTRY_LENGTH))
+            throw new IOException("Запись за пределами сохранения " + name);
+
+        writeData(buffer.getLong(pos + ENTRY_OFFSET) + position, data, 0, data.length);
+        buffer.putLong(pos + ENTRY_MODIFIED, System.currentTimeMillis());
+        changed();
+    }
+
+    /**
+     * Inserts new slot or overwrites existing one. Data is always written to a free extent
+     * and the old extent is released after the index entry points to the new one.
+     */
+    public synchronized void put(String name, byte[] data) throws IOException {
+        Integer idx = entries.get(name);
+
+        if (idx == null) {
+            idx = freeEntry();
+            if (idx < 0) {
+                growIndex();
+                put(name, data);
+                return;
+            }
+        }
+
+        int capacity = Math.max(BLOCK_SIZE, blocks(data.length + data.length / 4));
+        long offset = allocate(capacity);
+        writeData(offset, data, 0, data.length);
+        // Pages of the index may reach the disk before pages of the data, so the data goes first
+        force();
+
+        int pos = entryPos(idx);
+        long oldOffset = buffer.getLong(pos + ENTRY_OFFSET);
+        int oldCapacity = entries.containsKey(name) ? buffer.getInt(pos + ENTRY_CAPACITY) : 0;
+
+        buffer.putLong(pos + ENTRY_OFFSET, offset);
+        buffer.putInt(pos + ENTRY_LENGTH, data.length);
+        buffer.putInt(pos + ENTRY_CAPACITY, capacity);
+        buffer.putLong(pos + ENTRY_MODIFIED, System.currentTimeMillis());
+        if (!entries.containsKey(name)) {
+            writeName(pos, name);
+            entries.put(name, idx);
+        }
+        if (oldCapacity > 0)
+            release(oldOffset, oldCapacity);
+
+        changed();
+    }
+
+    /**
+     * Appends data to the end of existing slot. Slot is moved if its extent is too small.
+     */
+    public synchronized void append(String name, byte[] data) throws IOException {
+        Integer idx = entries.get(name);
+        if (idx == null) {
+            put(name, data);
+            return;
+        }
+
+        int pos = entryPos(idx);
+        int length = buffer.getInt(pos + ENTRY_LENGTH);
+        if (length + data.length <= buffer.getInt(pos + ENTRY_CAPACITY)) {
+            writeData(buffer.getLong(pos + ENTRY_OFFSET) + length, data, 0, data.length);
+            force();
+            buffer.putInt(pos + ENTRY_LENGTH, length + data.length);
+            buffer.putLong(pos + ENTRY_MODIFIED, System.currentTimeMillis());
+            changed();
+            return;
+        }
+
+        byte[] old = read(name);
+        byte[] joined = Arrays.copyOf(old, old.length + data.length);
+        System.arraycopy(data, 0, joined, old.length, data.length);
+        put(name, joined);
+    }
+
+    /**
+     * @return false if there was no such slot
+     */
+    public synchronized boolean delete(String name) {
+        Integer idx = entries.remove(name);
+        if (idx == null)
+            return false;
+
+        int pos = entryPos(idx);
+        buffer.put(pos, (byte) 0);
+        release(buffer.getLong(pos + ENTRY_OFFSET), buffer.getInt(pos + ENTRY_CAPACITY));
+        changed();
+
+        return true;
+    }
+
+    /**
+     * Copies save files from the folder into the pack. Already packed slots are not overwritten.
+     * Then the pack is marked as imported, even if the folder is empty.
+     * @return amount of imported saves
+     */
+    public synchronized int importFrom(File dir, FilenameFilter filter) throws IOException {
+        File[] files = dir.listFiles(filter);
+
+        int imported = 0;
+        for (File f : (files == null) ? new File[0] : files) {
+            if (entries.containsKey(f.getName()))
+                continue;
+
+            put(f.getName(), Files.readAllBytes(f.toPath()));
+            imported++;
+        }
+
+        buffer.putShort(FLAGS_OFFSET, (short) (buffer.getShort(FLAGS_OFFSET) | FLAG_IMPORTED));
+        force();
+
+        return imported;
+    }
+
+    /**
+     * Unmaps the file and truncates free space at its end. If the mapping can't be released explicitly,
+     * the file is not truncated: a mapped file must not be shortened.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        boolean unmapped = unmap(buffer);
+        buffer = null;
+
+        if (unmapped)
+            channel.truncate(dataEnd);
+        channel.close();
+        raf.close();
+    }
+
+    /**
+     * Rewrites pack so that all slots are stored one after another without free space
+     * @param indexCapacity Capacity of index in the new pack
+     */
+    public static void compact(File file, int indexCapacity) throws IOException {
+        File tmp = tempOf(file);
+        try (SavePack source = new SavePack(file, false)) {
+            source.compactTo(tmp, indexCapacity);
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Writes all slots of the pack one after another into a new pack file, the pack itself is not changed
+     * @throws IOException if the new pack can't be written, it is deleted then
+     */
+    private void compactTo(File tmp, int indexCapacity) throws IOException {
+        Files.deleteIfExists(tmp.toPath());
+
+        try (SavePack target = new SavePack(tmp, false, Math.max(indexCapacity, entries.size()))) {
+            List<Map.Entry<String, Integer>> slots = new ArrayList<>(entries.entrySet());
+            slots.sort(Comparator.comparingLong(e -> buffer.getLong(entryPos(e.getValue()) + ENTRY_OFFSET)));
+
+            for (Map.Entry<String, Integer> e : slots) {
+                byte[] data = read(e.getKey());
+                long modified = buffer.getLong(entryPos(e.getValue()) + ENTRY_MODIFIED);
+
+                target.put(e.getKey(), data);
+                target.buffer.putLong(target.entryPos(target.entries.get(e.getKey())) + ENTRY_MODIFIED, modified);
+            }
+            target.generation = generation;
+            target.buffer.putShort(FLAGS_OFFSET, buffer.getShort(FLAGS_OFFSET));
+            target.changed();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2 || !args[0].equals("compact")) {
+            System.out.println("Usage: SavePack compact <pack file>");
+            return;
+        }
+
+        File file = new File(args[1]);
+        long before = file.length();
+        try {
+            compact(file, DEFAULT_INDEX_CAPACITY);
+            System.out.println("Архив сжат: " + before + " -> " + file.length() + " байт");
+        } catch (IOException e) {
+            System.out.println("Ошибка: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads header and index, calculates free extents
+     */
+    private void open() throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(0);
+        view.get(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new CorruptedSaveException("Файл " + file + " не является архивом сохранений!");
+
+        indexCapacity = buffer.getInt(8);
+        generation = buffer.getLong(GENERATION_OFFSET);
+        dataEnd = dataStart();
+
+        TreeMap<Long, Long> used = new TreeMap<>();
+        for (int idx = 0; idx < indexCapacity; idx++) {
+            int pos = entryPos(idx);
+            int nameLength = buffer.get(pos) & 0xFF;
+            if (nameLength == 0)
+                continue;
+
+            byte[] name = new byte[nameLength];
+            view.position(pos + 1);
+            view.get(name);
+            entries.put(new String(name, StandardCharsets.UTF_8), idx);
+
+            long offset = buffer.getLong(pos + ENTRY_OFFSET);
+            long capacity = buffer.getInt(pos + ENTRY_CAPACITY);
+            used.put(offset, capacity);
+            dataEnd = Math.max(dataEnd, offset + capacity);
+        }
+
+        long prev = dataStart();
+        for (Map.Entry<Long, Long> e : used.entrySet()) {
+            if (e.getKey() > prev)
+                free.put(prev, e.getKey() - prev);
+            prev = e.getKey() + e.getValue();
+        }
+    }
+
+    /**
+     * Releases the mapping without waiting for GC: through Unsafe.invokeCleaner on Java 9+
+     * and through the cleaner of the buffer on Java 8
+     * @return false if the mapping can't be released on this JVM
+     */
+    private static boolean unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8: there is no invokeCleaner
+        }
+
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.fine("Unable to unmap " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Maps file to memory. Old mapping is released by GC.
+     */
+    private void map(long size) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void ensureSize(long size) throws IOException {
+        if (size <= buffer.capacity())
+            return;
+
+        long newSize = Math.max(size, (long) buffer.capacity() * 2);
+        if (newSize > Integer.MAX_VALUE)
+            throw new IOException("Архив сохранений слишком большой!");
+
+        buffer.force();
+        map(newSize);
+    }
+
+    /**
+     * @return offset of extent with given capacity: the first fitting free extent or the end of data
+     */
+    private long allocate(int capacity) throws IOException {
+        for (Map.Entry<Long, Long> e : free.entrySet()) {
+            long offset = e.getKey(), size = e.getValue();
+            if (size < capacity)
+                continue;
+
+            free.remove(offset);
+            if (size > capacity)
+                free.put(offset + capacity, size - capacity);
+
+            return offset;
+        }
+
+        long offset = dataEnd;
+        ensureSize(offset + capacity);
+        dataEnd += capacity;
+
+        return offset;
+    }
+
+    /**
+     * Returns extent to free space, merging it with neighbours
+     */
+    private void release(long offset, long capacity) {
+        Map.Entry<Long, Long> before = free.floorEntry(offset);
+        if (before != null && before.getKey() + before.getValue() == offset) {
+            offset = before.getKey();
+            capacity += before.getValue();
+            free.remove(offset);
+        }
+
+        Long after = free.ceilingKey(offset + capacity);
+        if (after != null && after == offset + capacity) {
+            capacity += free.remove(after);
+        }
+
+        if (offset + capacity == dataEnd)
+            dataEnd = offset;
+        else
+            free.put(offset, capacity);
+    }
+
+    /**
+     * Index is full: pack is rewritten with doubled index into a temp file while it is still open,
+     * then the temp file replaces it and is reopened. If rewriting fails, the pack stays as it was.
+     */
+    private void growIndex() throws IOException {
+        log.info("Index of " + file + " is full. Growing it to " + indexCapacity * 2 + " entries");
+
+        File tmp = tempOf(file);
+        compactTo(tmp, indexCapacity * 2);
+
+        close();
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        } finally {
+            // The grown pack or the old one if it was not replaced
+            reopen();
+        }
+    }
+
+    private void reopen() throws IOException {
+        entries.clear();
+        free.clear();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        map(channel.size());
+        open();
+    }
+
+    private static File tempOf(File file) {
+        return new File(file.getParentFile(), file.getName() + ".tmp");
+    }
+
+    private int freeEntry() {
+        for (int idx = 0; idx < indexCapacity; idx++)
+            if (buffer.get(entryPos(idx)) == 0)
+                return idx;
+
+        return -1;
+    }
+
+    private void writeName(int pos, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_LENGTH)
+            throw new IOException("Слишком длинное имя сохранения - " + name);
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(pos + 1);
+        view.put(bytes);
+        buffer.put(pos, (byte) bytes.length);
+    }
+
+    private void writeData(long offset, byte[] data, int off, int length) throws IOException {
+        ensureSize(offset + length);
+
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) offset);
+        view.put(data, off, length);
+    }
+
+    private void changed() {
+        buffer.putLong(GENERATION_OFFSET, ++generation);
+        force();
+    }
+
+    private void force() {
+        if (fsync)
+            buffer.force();
+    }
+
+    private int entryPos(int idx) {
+        return HEADER_SIZE + idx * ENTRY_SIZE;
+    }
+
+    private long dataStart() {
+        return blocks(HEADER_SIZE + (long) indexCapacity * ENTRY_SIZE);
+    }
+
+    private static int blocks(long size) {
+        return (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE);
+    }
+}
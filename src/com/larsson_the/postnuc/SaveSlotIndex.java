@@ -0,0 +1,247 @@
+package com.larsson_the.postnuc;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * In-memory index of used save slots: character name -> slot numbers (oldest first).<br>
+ * Savenames have format NAME_SLOT (Bob_1, Bob_2, Julia_1...).
+ * Index is persisted next to the saves folder and rebuilt from the list of saves only when
+ * the index file is missing or stale(saves were modified after the index was stored).
+ */
+class SaveSlotIndex {
+    private static Logger log = Logger.getLogger(SaveSlotIndex.class.getName());
+
+    private final File indexFile;
+    private final LongSupplier stamp;
+    private final Supplier<Map<String, Long>> saves;
+    private final String[] extensions;
+    private final int limit;
+    private final Map<String, Slots> slots;
+
+    /**
+     * @param indexFile File where index is persisted
+     * @param stamp Value which is changed on every change of saves(for ex. modification time of saves folder)
+     * @param saves Supplier of save filenames with their modification time, used to rebuild the index
+     * @param limit Max amount of slots for one name. When reached - the oldest slot is reused
+     * @param extensions Extensions of save files(for ex. '.sav')
+     */
+    SaveSlotIndex(File indexFile, LongSupplier stamp, Supplier<Map<String, Long>> saves,
+                  int limit, String... extensions) {
+        this.indexFile = indexFile;
+        this.stamp = stamp;
+        this.saves = saves;
+        this.extensions = extensions;
+        this.limit = limit;
+        this.slots = new HashMap<>();
+
+        if (!load()) {
+            log.info("Save slot index is missing or stale. Rebuilding");
+            rebuild();
+            store();
+        }
+    }
+
+    /**
+     * Reserves slot for the next save of character with given name.
+     * If limit of slots is reached - the oldest slot is reused.<br>
+     * Slot becomes used only by {@link #touch(String, int)} when the save is written,
+     * if the save fails the reservation is returned by {@link #cancel(String, int)}.
+     * @return slot number(starting from 1)
+     */
+    public synchronized int allocate(String name) {
+        Slots s = slots.computeIfAbsent(name, k -> new Slots());
+        int slot;
+
+        if (!s.free.isEmpty()) {
+            slot = s.free.poll();
+        } else if (s.next <= limit) {
+            slot = s.next++;
+        } else {
+            slot = s.used.iterator().next();
+            for (int used : s.used) {
+                if (!s.reserved.contains(used)) {
+                    slot = used;
+                    break;
+                }
+            }
+            log.info("Slot limit(" + limit + ") reached for " + name + ". Reusing the oldest slot " + slot);
+        }
+
+        s.reserved.add(slot);
+        return slot;
+    }
+
+    /**
+     * Returns reserved slot of a failed save
+     */
+    public synchronized void cancel(String name, int slot) {
+        Slots s = slots.get(name);
+
+        if (s != null && s.reserved.remove(slot) && !s.used.contains(slot))
+            s.free.addFirst(slot);
+    }
+
+    /**
+     * Marks slot as the most recent one(for ex. when existing save is overwritten)
+     */
+    public synchronized void touch(String name, int slot) {
+        Slots s = slots.computeIfAbsent(name, k -> new Slots());
+
+        s.reserved.remove(slot);
+        s.free.remove(slot);
+        s.used.remove(slot);
+        s.used.add(slot);
+        if (slot >= s.next)
+            s.next = slot + 1;
+    }
+
+    /**
+     * Marks slot as free(for ex. when save was deleted)
+     */
+    public synchronized void release(String name, int slot) {
+        Slots s = slots.get(name);
+
+        if (s != null && s.used.remove(slot))
+            s.free.add(slot);
+    }
+
+    /**
+     * @return used slots of character with given name, the oldest first
+     */
+    public synchronized List<Integer> getSlots(String name) {
+        Slots s = slots.get(name);
+        return (s == null) ? Collections.emptyList() : new ArrayList<>(s.used);
+    }
+
+    /**
+     * Persists index. Should be called after save file was written, so the stamp is up to date.
+     */
+    public synchronized void store() {
+        JSONObject json = new JSONObject();
+        JSONObject jSlots = new JSONObject();
+
+        json.put("stamp", stamp.getAsLong());
+        json.put("slots", jSlots);
+        for (Map.Entry<String, Slots> entry : slots.entrySet()) {
+            jSlots.put(entry.getKey(), new JSONArray(entry.getValue().used));
+        }
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile)))) {
+            writer.write(json.toString());
+        } catch (IOException e) {
+            log.warning("Unable to store save slot index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return false if index file is missing, broken or stale
+     */
+    private boolean load() {
+        if (!indexFile.exists())
+            return false;
+
+        try {
+            JSONObject json = new JSONObject(Game.Utils.readFile(indexFile.getPath()));
+            if (json.getLong("stamp") != stamp.getAsLong())
+                return false;
+
+            JSONObject jSlots = json.getJSONObject("slots");
+            for (String name : jSlots.keySet()) {
+                JSONArray jUsed = jSlots.getJSONArray(name);
+                Slots s = new Slots();
+
+                for (int i = 0; i < jUsed.length(); i++)
+                    s.used.add(jUsed.getInt(i));
+                s.fill();
+
+                slots.put(name, s);
+            }
+        } catch (JSONException e) {
+            slots.clear();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Rebuilds index from the list of saves. Slots are ordered by modification time of save files.
+     */
+    private void rebuild() {
+        slots.clear();
+
+        List<Map.Entry<String, Long>> files = new ArrayList<>(saves.get().entrySet());
+        files.sort(Map.Entry.comparingByValue());
+        for (Map.Entry<String, Long> file : files) {
+            String savename = stripExtension(file.getKey());
+            if (savename == null)
+                continue;
+
+            int idx = savename.lastIndexOf('_');
+            if (idx < 1)
+                continue;
+
+            int slot;
+            try {
+                slot = Integer.parseInt(savename.substring(idx + 1));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (slot < 1 || slot > limit)
+                continue;
+
+            slots.computeIfAbsent(savename.substring(0, idx), k -> new Slots()).used.add(slot);
+        }
+
+        for (Slots s : slots.values())
+            s.fill();
+    }
+
+    /**
+     * @return filename without save extension, null if it is not a save file
+     */
+    private String stripExtension(String filename) {
+        for (String extension : extensions)
+            if (filename.endsWith(extension))
+                return filename.substring(0, filename.length() - extension.length());
+
+        return null;
+    }
+
+    /**
+     * Slots of one character name
+     */
+    private static class Slots {
+        private final LinkedHashSet<Integer> used = new LinkedHashSet<>();
+        private final ArrayDeque<Integer> free = new ArrayDeque<>();
+        /**
+         * Slots allocated for saves which are not written yet
+         */
+        private final Set<Integer> reserved = new HashSet<>();
+        private int next = 1;
+
+        /**
+         * Calculates next slot and holes in used slots
+         */
+        private void fill() {
+            int max = 0;
+            for (int slot : used)
+                max = Math.max(max, slot);
+
+            free.clear();
+            for (int slot = 1; slot < max; slot++)
+                if (!used.contains(slot))
+                    free.add(slot);
+
+            next = max + 1;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.larsson_the.postnuc;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.*;
+
+/**
+ * Immutable copy of everything that goes to the save file. Character state is taken
+ * by {@link Character#snapshot()} without copying, so saving does not stall the game thread.
+ * Taking a snapshot is the only part of saving performed on the game thread,
+ * serialization is done later by {@link SaveWriter}.
+ */
+class SaveSnapshot {
+    private final Map<String, String> saveInfo;
+    private final Map<String, String> basics;
+    private final Map<String, Integer> special;
+    private final List<String> traits;
+    private final Map<String, Integer> skillPoints;
+    private final Set<String> taggedSkills;
+    private final Map<String, Integer> perks;
+    private final List<Inventory.Slot> inventory;
+
+    /**
+     * Snapshot without traits, skills, perks and inventory, they are set by with...() methods
+     */
+    SaveSnapshot(Map<String, String> saveInfo, Map<String, String> basics, Map<String, Integer> special) {
+        this.saveInfo = Collections.unmodifiableMap(new LinkedHashMap<>(saveInfo));
+        this.basics = Collections.unmodifiableMap(new LinkedHashMap<>(basics));
+        this.special = Collections.unmodifiableMap(new LinkedHashMap<>(special));
+        this.traits = Collections.emptyList();
+        this.skillPoints = Collections.emptyMap();
+        this.taggedSkills = Collections.emptySet();
+        this.perks = Collections.emptyMap();
+        this.inventory = Collections.emptyList();
+    }
+
+    /**
+     * Sections are already immutable, so they are not copied
+     */
+    private SaveSnapshot(Map<String, String> saveInfo, Map<String, String> basics, Map<String, Integer> special,
+                         List<String> traits, Map<String, Integer> skillPoints, Set<String> taggedSkills,
+                         Map<String, Integer> perks, List<Inventory.Slot> inventory) {
+        this.saveInfo = saveInfo;
+        this.basics = basics;
+        this.special = special;
+        this.traits = traits;
+        this.skillPoints = skillPoints;
+        this.taggedSkills = taggedSkills;
+        this.perks = perks;
+        this.inventory = inventory;
+    }
+
+    /**
+     * @param character Character to take snapshot of
+     * @param saveInfo Save info(savename etc.). Savetime is set to current time, version - to the current schema
+     */
+    public static SaveSnapshot of(Character character, Map<String, String> saveInfo) {
+        Map<String, String> info = new LinkedHashMap<>(saveInfo);
+        info.put("savetime", Game.Utils.getCurrentTimeStamp());
+        info.put("version", String.valueOf(SaveMigrator.VERSION));
+
+        return new SaveSnapshot(info, character.snapshot());
+    }
+
+    /**
+     * Sections of the character snapshot are never changed, so they are not copied
+     */
+    SaveSnapshot(Map<String, String> saveInfo, CharacterSnapshot character) {
+        this.saveInfo = Collections.unmodifiableMap(saveInfo);
+        this.basics = character.getBasics();
+        this.special = character.getSpecial();
+        this.traits = character.getTraits();
+        this.skillPoints = character.getSkillPoints();
+        this.taggedSkills = character.getTaggedSkills();
+        this.perks = character.getPerks();
+        this.inventory = character.getInventory();
+    }
+
+    /**
+     * @return copy of the snapshot with the taken traits
+     */
+    public SaveSnapshot withTraits(List<String> traits) {
+        return new SaveSnapshot(saveInfo, basics, special, Collections.unmodifiableList(new ArrayList<>(traits)),
+                skillPoints, taggedSkills, perks, inventory);
+    }
+
+    /**
+     * @param points Spent points of skills by their keys
+     * @param tagged Keys of tagged skills
+     * @return copy of the snapshot with the skills
+     */
+    public SaveSnapshot withSkills(Map<String, Integer> points, Set<String> tagged) {
+        return new SaveSnapshot(saveInfo, basics, special, traits,
+                Collections.unmodifiableMap(new LinkedHashMap<>(points)),
+                Collections.unmodifiableSet(new LinkedHashSet<>(tagged)), perks, inventory);
+    }
+
+    /**
+     * @param perks Ranks of taken perks by their names
+     * @return copy of the snapshot with the perks
+     */
+    public SaveSnapshot withPerks(Map<String, Integer> perks) {
+        return new SaveSnapshot(saveInfo, basics, special, traits, skillPoints, taggedSkills,
+                Collections.unmodifiableMap(new LinkedHashMap<>(perks)), inventory);
+    }
+
+    /**
+     * @return copy of the snapshot with the slots of the inventory
+     */
+    public SaveSnapshot withInventory(List<Inventory.Slot> inventory) {
+        return new SaveSnapshot(saveInfo, basics, special, traits, skillPoints, taggedSkills, perks,
+                Collections.unmodifiableList(new ArrayList<>(inventory)));
+    }
+
+    public Map<String, String> getSaveInfo() {
+        return saveInfo;
+    }
+
+    public Map<String, String> getBasics() {
+        return basics;
+    }
+
+    /**
+     * @return base SPECIAL stats, without changes of traits
+     */
+    public Map<String, Integer> getSpecial() {
+        return special;
+    }
+
+    /**
+     * @return names of taken traits in order of taking
+     */
+    public List<String> getTraits() {
+        return traits;
+    }
+
+    /**
+     * @return spent points of skills which have them, by keys of skills
+     */
+    public Map<String, Integer> getSkillPoints() {
+        return skillPoints;
+    }
+
+    public Set<String> getTaggedSkills() {
+        return taggedSkills;
+    }
+
+    /**
+     * @return ranks of taken perks by their names
+     */
+    public Map<String, Integer> getPerks() {
+        return perks;
+    }
+
+    /**
+     * @return slots of the inventory, items are identified by their ids
+     */
+    public List<Inventory.Slot> getInventory() {
+        return inventory;
+    }
+
+    public String getSavename() {
+        return saveInfo.get("savename");
+    }
+
+    /**
+     * @return new character with copy of the snapshot
+     * @throws CorruptedSaveException if SPECIAL stats are missing or invalid or traits, skills, perks or items
+     * are unknown
+     */
+    public Character toCharacter() throws CorruptedSaveException {
+        for (Special s : Special.VALUES)
+            if (special.get(s.getKey()) == null)
+                throw new CorruptedSaveException("В сохранении отсутствует характеристика SPECIAL '"
+                        + s.getKey() + "'!");
+
+        try {
+            Character character = new Character(new LinkedHashMap<>(basics), special);
+            for (String trait : traits)
+                character.getTraits().add(trait);
+            character.restoreSkills(skillPoints, taggedSkills);
+            character.restorePerks(perks);
+            character.getInventory().restore(inventory);
+
+            return character;
+        } catch (Character.SPECIAL.IllegalSpecialStatException | IllegalArgumentException e) {
+            throw new CorruptedSaveException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return JSON tree of save in the format read by Game.loadGame()
+     */
+    public JSONObject toJSON() {
+        JSONObject save = new JSONObject();
+        JSONObject saveData = new JSONObject();
+        JSONObject charData = new JSONObject();
+        JSONObject charDataBasic = new JSONObject();
+        JSONObject charDataSpecial = new JSONObject();
+        JSONArray charDataInventory = new JSONArray();
+        JSONArray charDataSkills = new JSONArray();
+        JSONArray charDataTraits = new JSONArray();
+        JSONObject charDataPerks = new JSONObject();
+        JSONArray charDataEffects = new JSONArray();
+
+        save.put("save", saveData);
+        for (Map.Entry<String, String> entry : saveInfo.entrySet()) {
+            saveData.put(entry.getKey(), entry.getValue());
+        }
+        save.put("character", charData);
+        charData.put("basic", charDataBasic);
+        for (Map.Entry<String, String> entry : basics.entrySet()) {
+            charDataBasic.put(entry.getKey(), entry.getValue());
+        }
+        charData.put("special", charDataSpecial);
+        for (Map.Entry<String, Integer> entry : special.entrySet()) {
+            charDataSpecial.put(entry.getKey(), entry.getValue());
+        }
+        charData.put("traits", charDataTraits);
+        for (String trait : traits) {
+            charDataTraits.put(trait);
+        }
+        charData.put("skills", charDataSkills);
+        Set<String> skills = new LinkedHashSet<>(skillPoints.keySet());
+        skills.addAll(taggedSkills);
+        for (String key : skills) {
+            JSONObject skill = new JSONObject();
+            skill.put("key", key);
+            skill.put("points", skillPoints.getOrDefault(key, 0));
+            skill.put("tagged", taggedSkills.contains(key));
+            charDataSkills.put(skill);
+        }
+        charData.put("perks", charDataPerks);
+        for (Map.Entry<String, Integer> entry : perks.entrySet()) {
+            charDataPerks.put(entry.getKey(), entry.getValue());
+        }
+        charData.put("inventory", charDataInventory);
+        for (Inventory.Slot slot : inventory) {
+            JSONObject item = new JSONObject();
+            item.put("id", slot.getId());
+            item.put("count", slot.getCount());
+            item.put("condition", slot.getCondition());
+            item.put("flags", slot.getFlags());
+            charDataInventory.put(item);
+        }
+
+        return save;
+    }
+}
@@ -0,0 +1,203 @@
+package com.larsson_the.postnuc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Checks integrity of saves on a fork-join pool. Saves with checksum in {@link SaveHeader} are checked by CRC32,
+ * older saves without checksum are decoded completely.<br>
+ * Results are cached until the save is changed(by its length and time of modification),
+ * so only new and changed saves are checked again.
+ */
+class SaveVerifier {
+    private static Logger log = Logger.getLogger(SaveVerifier.class.getName());
+
+    /**
+     * Max amount of saves checked by one task without splitting
+     */
+    private static final int THRESHOLD = 8;
+
+    private final StorageBackend storage;
+    private final ForkJoinPool pool;
+    private final Map<String, Result> results;
+
+    /**
+     * @param storage Storage of saves
+     * @param parallelism Amount of threads, for ex. amount of cores
+     */
+    SaveVerifier(StorageBackend storage, int parallelism) {
+        this.storage = storage;
+        this.pool = new ForkJoinPool(parallelism);
+        this.results = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Checks all saves which are not checked yet or changed since the last check. Waits for completion.
+     * @param filenames Filenames of saves(for ex. 'Bob_1.sav')
+     * @return filenames of corrupted saves
+     */
+    public Set<String> verify(String[] filenames) {
+        Map<String, Long> modified;
+        try {
+            modified = storage.listModified();
+        } catch (IOException e) {
+            log.warning("Unable to list saves: " + e.getMessage());
+            modified = Collections.emptyMap();
+        }
+
+        List<String> unchecked = new ArrayList<>();
+        for (String filename : filenames) {
+            Result r = results.get(filename);
+            if (r == null || r.length != storage.length(filename)
+                    || r.modified != modified.getOrDefault(filename, 0L))
+                unchecked.add(filename);
+        }
+
+        if (!unchecked.isEmpty()) {
+            long start = System.nanoTime();
+            pool.invoke(new VerifyTask(unchecked, 0, unchecked.size(), modified));
+            log.info("Verified " + unchecked.size() + " saves in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+        }
+
+        Set<String> corrupted = new HashSet<>();
+        for (String filename : filenames) {
+            Result r = results.get(filename);
+            if (r != null && !r.valid)
+                corrupted.add(filename);
+        }
+
+        return corrupted;
+    }
+
+    /**
+     * Starts checking of saves in the background
+     * @return future completed with filenames of corrupted saves
+     */
+    public CompletableFuture<Set<String>> verifyAsync(String[] filenames) {
+        return CompletableFuture.supplyAsync(() -> verify(filenames), pool);
+    }
+
+    /**
+     * Stops threads of the pool
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * @return true if the save is not damaged
+     */
+    public boolean check(String filename) {
+        byte[] data;
+        try (InputStream in = storage.open(filename)) {
+            data = readAll(in);
+        } catch (IOException e) {
+            log.warning("Unable to read save " + filename + ": " + e.getMessage());
+            return false;
+        }
+
+        try {
+            SaveHeader header = SaveHeader.parse(data, data.length);
+
+            if (header != null && header.hasChecksum()) {
+                CRC32 crc = new CRC32();
+                crc.update(data, header.getSize(), data.length - header.getSize());
+
+                return (int) crc.getValue() == header.getChecksum() || isInterruptedAppend(data, header);
+            }
+
+            SaveFormat.read(new ByteArrayInputStream(data));
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.warning("Save " + filename + " is corrupted: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Game could be stopped after a journal batch was appended, but before the checksum in the header
+     * was rewritten. Such save is still valid: the batch has its own checksum and a torn one is ignored on load.
+     * @return true if the checksum is the one of everything before the last batch
+     */
+    private static boolean isInterruptedAppend(byte[] data, SaveHeader header) throws IOException {
+        if (header.getFormat() != SaveFormat.BINARY || header.getCompression() != SaveCompression.NONE)
+            return false;
+
+        int last = SaveJournal.lastBatch(data, BinarySaveCodec.skipSnapshot(data, header.getSize()));
+        if (last < 0)
+            return false;
+
+        CRC32 crc = new CRC32();
+        crc.update(data, header.getSize(), last - header.getSize());
+        if ((int) crc.getValue() != header.getChecksum())
+            return false;
+
+        log.warning("Checksum of the save does not include its last journal batch, save was interrupted");
+        return true;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            out.write(buf, 0, n);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Checks range of saves, splits it in halves while it is larger than {@link #THRESHOLD}
+     */
+    private class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> filenames;
+        private final int from, to;
+        private final Map<String, Long> modified;
+
+        private VerifyTask(List<String> filenames, int from, int to, Map<String, Long> modified) {
+            this.filenames = filenames;
+            this.from = from;
+            this.to = to;
+            this.modified = modified;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new VerifyTask(filenames, from, mid, modified), new VerifyTask(filenames, mid, to, modified));
+                return;
+            }
+
+            for (int i = from; i < to; i++) {
+                String filename = filenames.get(i);
+                long length = storage.length(filename);
+
+                results.put(filename, new Result(check(filename), length, modified.getOrDefault(filename, 0L)));
+            }
+        }
+    }
+
+    private static class Result {
+        private final boolean valid;
+        private final long length;
+        private final long modified;
+
+        private Result(boolean valid, long length, long modified) {
+            this.valid = valid;
+            this.length = length;
+            this.modified = modified;
+        }
+    }
+}
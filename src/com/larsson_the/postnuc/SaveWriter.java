@@ -0,0 +1,273 @@
+package com.larsson_the.postnuc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Background save writer. Game thread only submits {@link SaveSnapshot}s,
+ * dedicated thread serializes them in {@link SaveFormat} and atomically replaces the save in {@link StorageBackend}.<br>
+ * If a save for the same file is submitted before the previous one was picked by the writer -
+ * they are coalesced: only the newest snapshot is written and both callers get the same handle.<br>
+ * If format is appendable, saves after the first one append only changes as {@link SaveJournal} batches
+ * and rewrite metadata of {@link SaveHeader} in place.
+ * When journal of the file grows above the limit, it is compacted into a new full snapshot.
+ * After a failed save the file may be half-changed, so the next save to it is a full snapshot too.
+ * Compressed saves are always written as full snapshots.
+ */
+class SaveWriter {
+    private static Logger log = Logger.getLogger(SaveWriter.class.getName());
+
+    private final SaveFormat format;
+    private final SaveCompression compression;
+    private final StorageBackend storage;
+    private final int journalLimit;
+    private final Map<String, Pending> pending;
+    private final Map<String, Written> written;
+    private final Thread thread;
+    private boolean closed;
+
+    /**
+     * @param format Format of written saves
+     * @param compression Compression of written saves
+     * @param storage Storage of saves
+     * @param journalLimit Max size of journal in bytes before compaction, 0 - always write full snapshots
+     */
+    SaveWriter(SaveFormat format, SaveCompression compression, StorageBackend storage, int journalLimit) {
+        this.format = format;
+        this.compression = compression;
+        this.storage = storage;
+        this.journalLimit = journalLimit;
+        this.pending = new LinkedHashMap<>();
+        this.written = new HashMap<>();
+        this.closed = false;
+
+        thread = new Thread(this::run, "save-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues snapshot to be written to the file
+     * @param target Filename of the save(for ex. 'Bob_1.sav')
+     * @return handle to wait for completion of the save
+     */
+    public synchronized Handle submit(SaveSnapshot snapshot, String target) {
+        if (closed)
+            throw new IllegalStateException("Save writer is closed");
+
+        Pending p = pending.get(target);
+        if (p != null) {
+            p.snapshot = snapshot;
+            p.handle.coalesced++;
+            log.fine("Save to " + target + " coalesced with pending one");
+
+            return p.handle;
+        }
+
+        p = new Pending(snapshot, new Handle());
+        pending.put(target, p);
+        notifyAll();
+
+        return p.handle;
+    }
+
+    /**
+     * Writes all pending saves and stops the writer thread
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            String target;
+            Pending p;
+
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty())
+                    return;
+
+                Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator();
+                Map.Entry<String, Pending> entry = it.next();
+                it.remove();
+
+                target = entry.getKey();
+                p = entry.getValue();
+            }
+
+            try {
+                write(p.snapshot, target);
+                p.handle.complete(null);
+            } catch (IOException e) {
+                log.severe("Unable to save " + target + ": " + e.getMessage());
+                written.remove(target);
+                p.handle.complete(e);
+            } catch (RuntimeException e) {
+                // Bug in a codec or storage must not stop the thread, later saves would wait forever
+                log.severe("Unable to save " + target + ": " + e);
+                written.remove(target);
+                p.handle.complete(new IOException("Ошибка записи сохранения: " + e, e));
+            }
+        }
+    }
+
+    private void write(SaveSnapshot snapshot, String target) throws IOException {
+        Written w = written.get(target);
+
+        // File could be replaced by someone else(for ex. SaveConverter): journal can't be appended then
+        if (w != null && isAppendable() && w.length == storage.length(target)) {
+            byte[] batch = SaveJournal.diff(w.snapshot, snapshot);
+
+            if (batch == null) {
+                log.fine("Nothing changed since last save to " + target);
+                return;
+            }
+            if (w.journal + batch.length <= journalLimit) {
+                storage.append(target, batch);
+                w.checksum.update(batch);
+                storage.write(target, SaveHeader.CHECKSUM_OFFSET,
+                        SaveHeader.of(format, compression, snapshot, (int) w.checksum.getValue()).getRewritable());
+
+                w.snapshot = snapshot;
+                w.journal += batch.length;
+                w.length += batch.length;
+                return;
+            }
+
+            log.fine("Journal of " + target + " reached " + journalLimit + " bytes. Compacting");
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        format.write(snapshot, compression, out);
+        byte[] data = out.toByteArray();
+        storage.put(target, data);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(data, SaveHeader.SIZE, data.length - SaveHeader.SIZE);
+        written.put(target, new Written(snapshot, data.length, checksum));
+    }
+
+    /**
+     * @return true if journal can be appended to the body
+     */
+    private boolean isAppendable() {
+        return format.getCodec().isAppendable() && compression == SaveCompression.NONE;
+    }
+
+    private static class Pending {
+        private SaveSnapshot snapshot;
+        private final Handle handle;
+
+        private Pending(SaveSnapshot snapshot, Handle handle) {
+            this.snapshot = snapshot;
+            this.handle = handle;
+        }
+    }
+
+    /**
+     * Last snapshot written to the file with size of the file, its journal and checksum of everything after header
+     */
+    private static class Written {
+        private SaveSnapshot snapshot;
+        private long length;
+        private long journal;
+        private final CRC32 checksum;
+
+        private Written(SaveSnapshot snapshot, long length, CRC32 checksum) {
+            this.snapshot = snapshot;
+            this.length = length;
+            this.journal = 0;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Future-style handle of submitted save
+     */
+    public static class Handle {
+        private final CompletableFuture<Handle> future;
+        private final long submitted;
+        private volatile long completed;
+        private volatile int coalesced;
+
+        private Handle() {
+            this.future = new CompletableFuture<>();
+            this.submitted = System.nanoTime();
+            this.coalesced = 0;
+        }
+
+        private void complete(IOException e) {
+            completed = System.nanoTime();
+
+            if (e == null)
+                future.complete(this);
+            else
+                future.completeExceptionally(e);
+        }
+
+        /**
+         * @return true if save is written(or failed)
+         */
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        /**
+         * Waits for the save to be written
+         * @throws IOException if save has failed
+         */
+        public void await() throws IOException, InterruptedException {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw (IOException) e.getCause();
+            }
+        }
+
+        /**
+         * @return future completed when the save is written
+         */
+        public CompletableFuture<Handle> getFuture() {
+            return future;
+        }
+
+        /**
+         * @return milliseconds between first submit and completion, -1 if not completed yet
+         */
+        public long getLatencyMillis() {
+            return isDone() ? TimeUnit.NANOSECONDS.toMillis(completed - submitted) : -1;
+        }
+
+        /**
+         * @return amount of later submits merged into this save
+         */
+        public int getCoalesced() {
+            return coalesced;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.larsson_the.postnuc;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Skills defined in 'data/skills.json'. The file is read and all 'init' formulas are compiled only once,
+ * on the first use of {@link #get()}. Skill is identified by its index in alphabetical order of keys,
+ * which is used as index of the skill in {@link Character.Skills}.
+ */
+class SkillTable {
+    static final String RESOURCE = "data/skills.json";
+
+    private final Skill[] skills;
+    private final Map<String, Skill> byKey;
+    /**
+     * Masks of skills depending on every SPECIAL stat, by {@link Special#ordinal()}
+     */
+    private final long[] dependents = new long[Special.VALUES.length];
+
+    private SkillTable(List<Skill> skills) {
+        if (skills.size() > Long.SIZE)
+            throw new IllegalArgumentException("Слишком много навыков: " + skills.size());
+
+        this.skills = skills.toArray(new Skill[0]);
+        this.byKey = new HashMap<>();
+        for (Skill skill : this.skills) {
+            byKey.put(skill.key, skill);
+            for (Special s : skill.init.getInputs())
+                dependents[s.ordinal()] |= 1L << skill.id;
+        }
+    }
+
+    /**
+     * @return skills of the game
+     * @throws UncheckedIOException if 'skills.json' is missing or broken
+     */
+    public static SkillTable get() {
+        return Holder.TABLE;
+    }
+
+    /**
+     * Reads skills from JSON in the format of 'skills.json'
+     * @throws IOException if the file is broken or has a wrong formula
+     */
+    public static SkillTable load(InputStream in) throws IOException {
+        try {
+            JSONObject root = new JSONObject(new JSONTokener(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            JSONObject skills = root.getJSONObject("skills");
+            List<Skill> list = new ArrayList<>();
+
+            // JSONObject does not keep order of keys, so they are sorted for stable ids
+            for (String key : new TreeSet<>(skills.keySet())) {
+                JSONObject skill = skills.getJSONObject(key);
+                JSONArray desc = skill.optJSONArray("desc");
+
+                list.add(new Skill(list.size(), key, skill.getString("name"),
+                        (desc != null && desc.length() > 0) ? desc.getString(0) : "",
+                        Formula.compile(skill.getString("init"))));
+            }
+
+            return new SkillTable(list);
+        } catch (JSONException | IllegalArgumentException e) {
+            throw new IOException("Ошибка в описании навыков: " + e.getMessage(), e);
+        }
+    }
+
+    public int size() {
+        return skills.length;
+    }
+
+    public Skill get(int id) {
+        return skills[id];
+    }
+
+    /**
+     * @return skill by its key(for ex. 'small_guns'), null if there is no such skill
+     */
+    public Skill get(String key) {
+        return byKey.get(key);
+    }
+
+    /**
+     * @return bit mask of skills depending on the SPECIAL stat, bit index is id of the skill
+     */
+    public long getDependents(Special s) {
+        return dependents[s.ordinal()];
+    }
+
+    public static class Skill {
+        private final int id;
+        private final String key;
+        private final String name;
+        private final String desc;
+        private final Formula init;
+
+        private Skill(int id, String key, String name, String desc, Formula init) {
+            this.id = id;
+            this.key = key;
+            this.name = name;
+            this.desc = desc;
+            this.init = init;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDesc() {
+            return desc;
+        }
+
+        /**
+         * @return initial value of the skill by SPECIAL stats
+         */
+        public int init(Character character) {
+            return (int) init.eval(character);
+        }
+
+        public Formula getInit() {
+            return init;
+        }
+    }
+
+    /**
+     * Lazy loading of the table on the first use
+     */
+    private static class Holder {
+        private static final SkillTable TABLE;
+
+        static {
+            try (InputStream in = SkillTable.class.getResourceAsStream(RESOURCE)) {
+                if (in == null)
+                    throw new FileNotFoundException("Не найден файл навыков " + RESOURCE);
+
+                TABLE = load(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.larsson_the.postnuc;
+
+/**
+ * Stats of the SPECIAL system. Ordinal of the stat is its index in storage of {@link Character.SPECIAL}.
+ */
+enum Special {
+    S("s"), P("p"), E("e"), C("c"), I("i"), A("a"), L("l");
+
+    /**
+     * All stats in order, {@link #values()} creates a new array on every call
+     */
+    static final Special[] VALUES = values();
+
+    private final String key;
+
+    Special(String key) {
+        this.key = key;
+    }
+
+    /**
+     * @return key of the stat in saves and String-keyed maps(for ex. 's')
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return stat by its key, null if there is no such stat
+     */
+    public static Special of(String key) {
+        if (key == null || key.length() != 1)
+            return null;
+
+        switch (key.charAt(0)) {
+            case 's': return S;
+            case 'p': return P;
+            case 'e': return E;
+            case 'c': return C;
+            case 'i': return I;
+            case 'a': return A;
+            case 'l': return L;
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.larsson_the.postnuc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Storage of save files addressed by filename(for ex. 'Bob_1.sav').
+ * Implementations: {@link FileStorage} - saves folder, {@link SavePack} - single-file archive,
+ * {@link DedupStorage} - deduplicated blocks in saves folder, {@link MemoryStorage} - RAM only,
+ * for benchmarks and batch jobs.
+ */
+interface StorageBackend extends Closeable {
+    /**
+     * @return names of all stored files in no particular order
+     */
+    String[] list() throws IOException;
+
+    /**
+     * @return names of all stored files with time of their last modification
+     */
+    Map<String, Long> listModified() throws IOException;
+
+    /**
+     * @return value changed on every creation or deletion of a file
+     */
+    long getStamp();
+
+    /**
+     * @return length of the file, -1 if there is no such file
+     */
+    long length(String name);
+
+    /**
+     * @throws java.io.FileNotFoundException if there is no such file
+     */
+    InputStream open(String name) throws IOException;
+
+    /**
+     * @return copy of part of the file(shorter if the file is shorter)
+     * @throws java.io.FileNotFoundException if there is no such file
+     */
+    byte[] read(String name, int position, int length) throws IOException;
+
+    /**
+     * Creates the file or atomically replaces its content. Interrupted put leaves the old content intact.
+     */
+    void put(String name, byte[] data) throws IOException;
+
+    /**
+     * Appends data to the end of the file, creates the file if there is no such one
+     */
+    void append(String name, byte[] data) throws IOException;
+
+    /**
+     * Overwrites part of existing file in place
+     */
+    void write(String name, int position, byte[] data) throws IOException;
+
+    /**
+     * @return false if there was no such file
+     */
+    boolean delete(String name) throws IOException;
+}
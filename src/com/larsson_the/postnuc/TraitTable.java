@@ -0,0 +1,416 @@
+package com.larsson_the.postnuc;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Traits defined in 'data/traits.json' with compiled benefit and penalty rules.
+ * The file is read once, on the first use of {@link #get()}.<br>
+ * Rule is a list of statements separated by ';'. Statement is 'target op value', where op is one of
+ * '+=', '-=', '*=', '/=', '=' and value is a {@link Formula} or 'true'/'false'. Only '=' may read SPECIAL stats.
+ * Statement may have a condition on the context(weapon, target):
+ * 'if weapon.one_handed == true: hit_chance += 20'. Right side of the condition is a literal(number, 'true', 'false')
+ * or a basic stat of the character('if target.sex != sex: ...'), names of basic stats are resolved on compiling.<br>
+ * Every target gets an index, so {@link Character.Traits} keeps its totals in arrays.
+ */
+class TraitTable {
+    static final String RESOURCE = "data/traits.json";
+    /**
+     * Targets of all SPECIAL stats and all skills
+     */
+    static final String ALL_SPECIAL = "special";
+    static final String ALL_SKILLS = "skills";
+
+    private static final Pattern STATEMENT =
+            Pattern.compile("([A-Za-z_][\\w.]*)\\s*(\\+=|-=|\\*=|/=|=)\\s*(.+)");
+    private static final Pattern CONDITION =
+            Pattern.compile("([A-Za-z_]\\w*)\\.([A-Za-z_]\\w*)\\s*(==|!=)\\s*([\\w.]+)");
+    /**
+     * Keys of basic stats by their names in conditions
+     */
+    private static final Map<String, String> BASICS = new HashMap<>();
+
+    static {
+        for (String key : new String[] {"name", "gender", "race", "level"})
+            BASICS.put(key, key);
+        BASICS.put("sex", "gender");
+    }
+
+    enum Kind {
+        /**
+         * SPECIAL stat('S', 'a') or all of them('special'). Changed once, when the trait is taken.
+         */
+        SPECIAL,
+        /**
+         * {@link DerivedStat}, changed through {@link DerivedStats}
+         */
+        DERIVED,
+        /**
+         * Skill of {@link SkillTable} or all of them('skills')
+         */
+        SKILL,
+        /**
+         * Any other value, read by its user through {@link Character.Traits#apply(String, double)}
+         */
+        OTHER
+    }
+
+    enum Operation {
+        SET, ADD, MULTIPLY
+    }
+
+    private final Map<String, Trait> traits;
+    private final List<String> targets;
+    private final Map<String, Integer> indexes;
+
+    private TraitTable(Map<String, Trait> traits, List<String> targets, Map<String, Integer> indexes) {
+        this.traits = traits;
+        this.targets = targets;
+        this.indexes = indexes;
+    }
+
+    /**
+     * @return traits of the game
+     * @throws UncheckedIOException if 'traits.json' is missing or broken
+     */
+    public static TraitTable get() {
+        return Holder.TABLE;
+    }
+
+    /**
+     * Reads traits from JSON in the format of 'traits.json'
+     * @throws IOException if the file is broken or has a wrong rule
+     */
+    public static TraitTable load(InputStream in) throws IOException {
+        Map<String, Trait> traits = new LinkedHashMap<>();
+        List<String> targets = new ArrayList<>();
+        Map<String, Integer> indexes = new HashMap<>();
+
+        try {
+            JSONObject root = new JSONObject(new JSONTokener(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            JSONArray array = root.getJSONArray("traits");
+
+            if (array.length() > Long.SIZE)
+                throw new IOException("Слишком много черт: " + array.length());
+
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject trait = array.getJSONObject(i);
+                String name = trait.getString("name");
+
+                List<Op> ops = new ArrayList<>();
+                for (String field : new String[] {"benefit", "penalty"}) {
+                    try {
+                        ops.addAll(compile(trait.optString(field, ""), targets, indexes));
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException("Ошибка в правиле " + field + " черты " + name + ": " + e.getMessage());
+                    }
+                }
+
+                traits.put(name, new Trait(i, name, trait.optString("desc", ""), ops));
+            }
+        } catch (JSONException e) {
+            throw new IOException("Ошибка в описании черт: " + e.getMessage(), e);
+        }
+
+        return new TraitTable(traits, targets, indexes);
+    }
+
+    /**
+     * Compiles rule of a trait
+     * @param targets Targets met so far, new ones are added
+     * @param indexes Indexes of targets in the list
+     * @throws IllegalArgumentException if the rule has syntax error
+     */
+    static List<Op> compile(String rule, List<String> targets, Map<String, Integer> indexes) {
+        List<Op> ops = new ArrayList<>();
+
+        for (String statement : rule.split(";")) {
+            statement = statement.trim();
+            if (statement.isEmpty())
+                continue;
+
+            Condition condition = null;
+            if (statement.startsWith("if ")) {
+                int colon = statement.indexOf(':');
+                if (colon < 0)
+                    throw new IllegalArgumentException("Ожидается ':' после условия в '" + statement + "'");
+
+                Matcher m = CONDITION.matcher(statement.substring(3, colon).trim());
+                if (!m.matches())
+                    throw new IllegalArgumentException("Неверное условие в '" + statement + "'");
+
+                condition = Condition.compile(m.group(1), m.group(2), m.group(3).equals("=="), m.group(4));
+                statement = statement.substring(colon + 1).trim();
+            }
+
+            Matcher m = STATEMENT.matcher(statement);
+            if (!m.matches())
+                throw new IllegalArgumentException("Неверная операция '" + statement + "'");
+
+            String target = m.group(1);
+            String op = m.group(2);
+            String value = m.group(3).trim();
+
+            Formula formula;
+            if (value.equals("true") || value.equals("false"))
+                formula = Formula.compile(value.equals("true") ? "1" : "0");
+            else
+                formula = Formula.compile(value);
+
+            Operation operation;
+            double constant = 0;
+            if (op.equals("=")) {
+                operation = Operation.SET;
+            } else {
+                if (!formula.isConstant())
+                    throw new IllegalArgumentException("Только '=' может зависеть от характеристик: '" + statement + "'");
+
+                constant = formula.eval(null);
+                switch (op) {
+                    case "+=": operation = Operation.ADD; break;
+                    case "-=": operation = Operation.ADD; constant = -constant; break;
+                    case "*=": operation = Operation.MULTIPLY; break;
+                    default:
+                        if (constant == 0)
+                            throw new IllegalArgumentException("Деление на 0: '" + statement + "'");
+                        operation = Operation.MULTIPLY;
+                        constant = 1 / constant;
+                }
+            }
+
+            Kind kind = kindOf(target);
+            if (kind == Kind.SPECIAL && (operation != Operation.ADD || condition != null))
+                throw new IllegalArgumentException("SPECIAL можно только безусловно увеличить или уменьшить: '"
+                        + statement + "'");
+
+            Integer index = indexes.get(target);
+            if (index == null) {
+                index = targets.size();
+                targets.add(target);
+                indexes.put(target, index);
+            }
+
+            ops.add(new Op(index, target, kind, operation, constant, formula, condition));
+        }
+
+        return ops;
+    }
+
+    private static Kind kindOf(String target) {
+        if (target.equals(ALL_SPECIAL) || (target.length() == 1 && Special.of(target.toLowerCase()) != null))
+            return Kind.SPECIAL;
+        if (DerivedStat.of(target) != null)
+            return Kind.DERIVED;
+        if (target.equals(ALL_SKILLS) || SkillTable.get().get(target) != null)
+            return Kind.SKILL;
+
+        return Kind.OTHER;
+    }
+
+    /**
+     * @return trait by its name(for ex. 'Small Frame'), null if there is no such trait
+     */
+    public Trait get(String name) {
+        return traits.get(name);
+    }
+
+    public Collection<Trait> getTraits() {
+        return traits.values();
+    }
+
+    /**
+     * @return amount of targets of all rules
+     */
+    public int size() {
+        return targets.size();
+    }
+
+    public String getTarget(int index) {
+        return targets.get(index);
+    }
+
+    /**
+     * @return index of the target, -1 if no rule changes it
+     */
+    public int indexOf(String target) {
+        return indexes.getOrDefault(target, -1);
+    }
+
+    public static class Trait {
+        private final int id;
+        private final String name;
+        private final String desc;
+        private final List<Op> ops;
+
+        private Trait(int id, String name, String desc, List<Op> ops) {
+            this.id = id;
+            this.name = name;
+            this.desc = desc;
+            this.ops = Collections.unmodifiableList(ops);
+        }
+
+        /**
+         * @return index of the trait in the file, used as bit index in masks of traits
+         */
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDesc() {
+            return desc;
+        }
+
+        /**
+         * @return operations of benefit and then penalty
+         */
+        public List<Op> getOps() {
+            return ops;
+        }
+    }
+
+    /**
+     * Compiled statement of a rule
+     */
+    public static class Op {
+        private final int index;
+        private final String target;
+        private final Kind kind;
+        private final Operation operation;
+        private final double constant;
+        private final Formula formula;
+        private final Condition condition;
+
+        private Op(int index, String target, Kind kind, Operation operation, double constant, Formula formula,
+                   Condition condition) {
+            this.index = index;
+            this.target = target;
+            this.kind = kind;
+            this.operation = operation;
+            this.constant = constant;
+            this.formula = formula;
+            this.condition = condition;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return summand of {@link Operation#ADD} or factor of {@link Operation#MULTIPLY}
+         */
+        public double getConstant() {
+            return constant;
+        }
+
+        /**
+         * @return new value for {@link Operation#SET}
+         */
+        public Formula getFormula() {
+            return formula;
+        }
+
+        /**
+         * @return condition, null if the operation is unconditional
+         */
+        public Condition getCondition() {
+            return condition;
+        }
+    }
+
+    /**
+     * Comparison of context attribute('weapon.one_handed') with a literal or a basic stat of the character
+     */
+    public static class Condition {
+        private final String context;
+        private final String attribute;
+        private final boolean equal;
+        private final String value;
+        /**
+         * Key of the basic stat compared with, null if the value is a literal
+         */
+        private final String basic;
+
+        private Condition(String context, String attribute, boolean equal, String value, String basic) {
+            this.context = context;
+            this.attribute = attribute;
+            this.equal = equal;
+            this.value = value;
+            this.basic = basic;
+        }
+
+        /**
+         * @param value Literal(number, 'true', 'false') or name of a basic stat
+         * @throws IllegalArgumentException if the value is not a literal and not a known basic stat
+         */
+        private static Condition compile(String context, String attribute, boolean equal, String value) {
+            if (value.equals("true") || value.equals("false") || java.lang.Character.isDigit(value.charAt(0)))
+                return new Condition(context, attribute, equal, value, null);
+
+            String basic = BASICS.get(value);
+            if (basic == null)
+                throw new IllegalArgumentException("Неизвестная характеристика '" + value + "' в условии");
+
+            return new Condition(context, attribute, equal, value, basic);
+        }
+
+        /**
+         * @return name of the context(for ex. 'weapon')
+         */
+        public String getContext() {
+            return context;
+        }
+
+        /**
+         * @param attributes Attributes of the context, null if there is no such context now
+         */
+        public boolean test(Character character, Map<String, String> attributes) {
+            if (attributes == null)
+                return false;
+
+            String expected = (basic == null) ? value : character.getBasic(basic);
+            return equal == Objects.equals(expected, attributes.get(attribute));
+        }
+    }
+
+    /**
+     * Lazy loading of the table on the first use
+     */
+    private static class Holder {
+        private static final TraitTable TABLE;
+
+        static {
+            try (InputStream in = TraitTable.class.getResourceAsStream(RESOURCE)) {
+                if (in == null)
+                    throw new FileNotFoundException("Не найден файл черт " + RESOURCE);
+
+                TABLE = load(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}